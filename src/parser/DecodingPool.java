@@ -0,0 +1,138 @@
+package parser;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import parser.decoding.DependencyDecoder;
+
+/***
+ * A pool of decoders that decodes whole sentences in parallel. Sentences are
+ * decoded either on worker threads of the pool, with submit, or on the
+ * calling thread, with decode. Each sentence borrows a decoder together with
+ * its feature data, which is reset for the sentence and reuses the buffers
+ * of the previous ones, so sentences do not share any mutable state and the
+ * model and dictionaries are only read; at most numThreads sentences are
+ * decoded at once.
+ */
+public class DecodingPool {
+
+	DependencyParser parser;
+	Options options;
+
+	int numThreads;
+	ExecutorService executorService;	// created on the first submit
+	Decoder[] allDecoders;				// the borrowed ones too
+	BlockingQueue<Decoder> decoders;	// the free ones
+
+	// a decoder and the feature data of its last sentence
+	static class Decoder {
+		DependencyDecoder decoder;
+		LocalFeatureData lfd;
+		GlobalFeatureData gfd;
+	}
+
+	public DecodingPool(DependencyParser parser, Options options, int numThreads)
+	{
+		this.parser = parser;
+		this.options = options;
+		this.numThreads = numThreads;
+		allDecoders = new Decoder[numThreads];
+		decoders = new ArrayBlockingQueue<Decoder>(numThreads);
+		for (int i = 0; i < numThreads; ++i) {
+			Decoder decoder = new Decoder();
+			decoder.decoder = DependencyDecoder.createDependencyDecoder(options);
+			allDecoders[i] = decoder;
+			decoders.add(decoder);
+		}
+	}
+
+	/***
+	 * Decodes a sentence on a worker thread. Results are returned as futures
+	 * and the caller decides the order in which they are consumed.
+	 */
+	public Future<DependencyInstance> submit(DependencyInstance inst, boolean indexGoldArcs)
+	{
+		synchronized (this) {
+			if (executorService == null)
+				executorService = Executors.newFixedThreadPool(numThreads);
+		}
+		return executorService.submit(new DecodingTask(inst, indexGoldArcs));
+	}
+
+	/***
+	 * Decodes a sentence on the calling thread, waiting for a free decoder
+	 * if numThreads sentences are being decoded. The heads and labels are
+	 * the ones of the returned instance.
+	 */
+	public DependencyInstance decode(DependencyInstance inst, boolean indexGoldArcs)
+	{
+		Decoder decoder;
+		try {
+			decoder = decoders.take();
+		} catch (InterruptedException e) {
+			throw new RuntimeException("Decoding thread interupted", e);
+		}
+		try {
+			if (decoder.lfd == null) {
+				decoder.lfd = new LocalFeatureData(inst, parser, indexGoldArcs);
+				decoder.gfd = new GlobalFeatureData(decoder.lfd);
+			} else {
+				decoder.lfd.reset(inst, indexGoldArcs);
+				decoder.gfd.reset();
+			}
+			LocalFeatureData lfd = decoder.lfd;
+			DependencyInstance predInst = decoder.decoder.decode(inst, lfd, decoder.gfd, false);
+			if (options.learnLabel)
+				lfd.predictLabels(predInst.heads, predInst.deplbids, false);
+			return predInst;
+		} catch (RuntimeException e) {
+			// the data may be left half reset
+			decoder.lfd = null;
+			decoder.gfd = null;
+			throw e;
+		} finally {
+			decoders.add(decoder);
+		}
+	}
+
+	public DependencyInstance get(Future<DependencyInstance> future)
+	{
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			throw new RuntimeException("Decoding thread interupted", e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	public void shutdown()
+	{
+		if (executorService != null) executorService.shutdownNow();
+		for (Decoder decoder : allDecoders)
+			decoder.decoder.shutdown();
+	}
+
+	class DecodingTask implements Callable<DependencyInstance> {
+
+		DependencyInstance inst;
+		boolean indexGoldArcs;
+
+		public DecodingTask(DependencyInstance inst, boolean indexGoldArcs)
+		{
+			this.inst = inst;
+			this.indexGoldArcs = indexGoldArcs;
+		}
+
+		@Override
+		public DependencyInstance call() throws Exception
+		{
+			return decode(inst, indexGoldArcs);
+		}
+	}
+}
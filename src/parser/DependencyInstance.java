@@ -121,23 +121,23 @@ public class DependencyInstance implements Serializable {
 		cpostagids = new int[length];
 		
     	for (int i = 0; i < length; ++i) {
-    		formids[i] = dicts.lookupIndex(WORD, "form="+normalize(forms[i]));
-			postagids[i] = dicts.lookupIndex(POS, "pos="+postags[i]);
-			cpostagids[i] = dicts.lookupIndex(POS, "cpos="+cpostags[i]);
+    		formids[i] = dicts.lookupIndex(WORD, "form=", normalize(forms[i]));
+			postagids[i] = dicts.lookupIndex(POS, "pos=", postags[i]);
+			cpostagids[i] = dicts.lookupIndex(POS, "cpos=", cpostags[i]);
 			deplbids[i] = dicts.lookupIndex(DEPLABEL, deprels[i]) - 1;	// zero-based
     	}
     	
     	if (lemmas != null) {
     		lemmaids = new int[length];
     		for (int i = 0; i < length; ++i)
-    			lemmaids[i] = dicts.lookupIndex(WORD, "lemma="+normalize(lemmas[i]));
+    			lemmaids[i] = dicts.lookupIndex(WORD, "lemma=", normalize(lemmas[i]));
     	}
 
 		featids = new int[length][];
 		for (int i = 0; i < length; ++i) if (feats[i] != null) {
 			featids[i] = new int[feats[i].length];
 			for (int j = 0; j < feats[i].length; ++j)
-				featids[i][j] = dicts.lookupIndex(POS, "feat="+feats[i][j]);
+				featids[i][j] = dicts.lookupIndex(POS, "feat=", feats[i][j]);
 		}
 		
 		if (dicts.size(WORDVEC) > 0) {
@@ -205,8 +205,32 @@ public class DependencyInstance implements Serializable {
     }
 	
     private String normalize(String s) {
-		if(s!=null && s.matches("[0-9]+|[0-9]+\\.[0-9]+|[0-9]+[0-9,]+"))
+		if(s!=null && isNumber(s))
 		    return "<num>";
 		return s;
     }
+    
+    /**
+     * Same as s.matches("[0-9]+|[0-9]+\\.[0-9]+|[0-9]+[0-9,]+"): digits and
+     * commas starting with a digit, or digits around a single dot.
+     */
+    static boolean isNumber(String s) {
+    	int n = s.length();
+    	if (n == 0 || s.charAt(0) < '0' || s.charAt(0) > '9')
+    		return false;
+    	int dot = -1;
+    	boolean comma = false;
+    	for (int i = 1; i < n; ++i) {
+    		char c = s.charAt(i);
+    		if (c == '.') {
+    			if (dot >= 0) return false;
+    			dot = i;
+    		}
+    		else if (c == ',')
+    			comma = true;
+    		else if (c < '0' || c > '9')
+    			return false;
+    	}
+    	return dot < 0 || (!comma && dot < n-1);
+    }
 }
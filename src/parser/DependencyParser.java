@@ -1,22 +1,50 @@
 package parser;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
 import java.io.Serializable;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 
 import parser.Options.LearningMode;
 import parser.decoding.DependencyDecoder;
+import parser.io.CorpusCache;
 import parser.io.DependencyReader;
 import parser.io.DependencyWriter;
+import parser.mixing.ParameterCoordinator;
+import parser.mixing.ParameterWorker;
 import parser.pruning.BasicArcPruner;
 import parser.sampling.RandomWalkSampler;
+import parser.server.ParsingServer;
+import utils.ModelFileReader;
+import utils.ModelFileWriter;
+import utils.ScoreTable;
 
 public class DependencyParser implements Serializable {
 	
@@ -25,6 +53,10 @@ public class DependencyParser implements Serializable {
 	 */
 	private static final long serialVersionUID = 1L;
 	
+	// mapped model files, see saveMappedModel
+	static final int MAPPED_MODEL_MAGIC = 0x52424750;	// "RBGP"
+	static final int MAPPED_MODEL_VERSION = 1;
+	static final int MAPPED_HEADER_SIZE = 16;
 	
 	protected Options options;
 	protected DependencyPipe pipe;
@@ -32,6 +64,10 @@ public class DependencyParser implements Serializable {
 	
 	DependencyParser pruner;
 	
+	// multi-process parameter mixing, connected during training
+	transient ParameterCoordinator coordinator;
+	transient ParameterWorker worker;
+	
 	double pruningGoldHits = 0;
 	double pruningTotGold = 1e-30;
 	double pruningTotUparcs = 0;
@@ -44,7 +80,44 @@ public class DependencyParser implements Serializable {
 		Options options = new Options();
 		options.processArguments(args);		
 		
+		// in stream mode stdout carries the parses, so messages go to stderr
+		OutputStream stdout = System.out;
+		if (options.stream) {
+			stdout = new FileOutputStream(FileDescriptor.out);
+			System.setOut(System.err);
+		}
+		
+		// the training corpus is read once, for the pruner and the parser,
+		// or not at all when it has a cache
+		DependencyInstance[] corpus = null;
+		CorpusCache cache = null;
+		if (options.train && options.corpusCacheDir != null)
+			cache = new CorpusCache(options, options.trainFile);
+		if (options.train && (cache == null || !cache.exists()))
+			corpus = DependencyPipe.readCorpus(options, options.trainFile);
+		
+		// the instances of the parser and of the pruner are built before
+		// either is trained, so that the strings of the corpus can be dropped
+		DependencyParser parser = null;
+		DependencyInstance[] lstTrain = null;
+		if (options.train) {
+			parser = new DependencyParser();
+			parser.options = options;
+			options.printOptions();
+			
+			DependencyPipe pipe = new DependencyPipe(options);
+			parser.pipe = pipe;
+			
+			if (corpus == null)
+				lstTrain = pipe.createInstances(cache);
+			else {
+				pipe.createAlphabets(corpus);
+				lstTrain = pipe.createInstances(corpus);
+			}
+		}
+		
 		DependencyParser pruner = null;
+		DependencyInstance[] lstPrunerTrain = null;
 		if (options.train && options.pruning && options.learningMode != LearningMode.Basic) {
 			Options prunerOptions = new Options();
 			prunerOptions.processArguments(args);
@@ -57,6 +130,10 @@ public class DependencyParser implements Serializable {
 			prunerOptions.gamma = 1.0;
 			prunerOptions.gammaLabel = 1.0;
 			prunerOptions.R = 0;
+			// only the parser takes part in multi-process mixing; every
+			// process trains its own pruner
+			prunerOptions.mixPort = 0;
+			prunerOptions.mixCoordinator = null;
 			
 			//pruner = new DependencyParser();
 			pruner = new BasicArcPruner();
@@ -65,39 +142,48 @@ public class DependencyParser implements Serializable {
 			DependencyPipe pipe = new DependencyPipe(prunerOptions);
 			pruner.pipe = pipe;
 			
-			pipe.createAlphabets(prunerOptions.trainFile);
-			DependencyInstance[] lstTrain = pipe.createInstances(prunerOptions.trainFile);
+			if (corpus == null)
+				lstPrunerTrain = pipe.createInstances(cache);
+			else {
+				pipe.createAlphabets(corpus);
+				lstPrunerTrain = pipe.createInstances(corpus);
+			}
 			
 			Parameters parameters = new Parameters(pipe, prunerOptions);
 			pruner.parameters = parameters;
-			
-			pruner.train(lstTrain);
+		}
+		
+		if (corpus != null) {
+			corpus = null;
+			if (cache != null) cache.write(parser.pipe, lstTrain);
+		}
+		
+		if (pruner != null) {
+			pruner.train(lstPrunerTrain);
+			lstPrunerTrain = null;
 		}
 		
 		if (options.train) {
-			DependencyParser parser = new DependencyParser();
-			parser.options = options;
-			options.printOptions();
-			
-			DependencyPipe pipe = new DependencyPipe(options);
-			parser.pipe = pipe;
-			
 			if (options.pruning) parser.pruner = pruner;
 			
-			pipe.createAlphabets(options.trainFile);
-			DependencyInstance[] lstTrain = pipe.createInstances(options.trainFile);
-			
-			Parameters parameters = new Parameters(pipe, options);
+			Parameters parameters = new Parameters(parser.pipe, options);
 			parser.parameters = parameters;
 			
 			parser.train(lstTrain);
+			// workers have nothing to save, the coordinator holds the mixed model
+			if (options.mixCoordinator != null) return;
+			// tuneSpeed() clears dev, which also asks for the quantization check
+			boolean dev = options.dev;
 			if (options.dev && options.learningMode != LearningMode.Basic) 
 				parser.tuneSpeed();
+			if (options.floatWeights) parser.compactWeights();
+			if (options.quantizedWeights) parser.quantizeWeights(dev);
 			parser.saveModel();
+			if (options.exportFile != null) parser.exportModel();
 		}
 		
 		if (options.test) {
-			DependencyParser parser = new DependencyParser();
+			parser = new DependencyParser();
 			parser.options = options;			
 			
 			parser.loadModel();
@@ -107,11 +193,50 @@ public class DependencyParser implements Serializable {
 				parser.tuneSpeed();
 				parser.saveModel();
 			}
+			// float and int8 weights are for decoding only, the model file
+			// keeps its own
+			if (parser.options.floatWeights) parser.compactWeights();
+			if (parser.options.quantizedWeights) parser.quantizeWeights(options.dev);
+			if (!options.train && parser.options.exportFile != null)
+				parser.exportModel();
 			
 			System.out.printf(" Evaluating: %s%n", options.testFile);
 			parser.evaluateSet(true, false);
 		}
 		
+		if (options.stream)
+			loadParser(options, args).parseStream(System.in, stdout);
+		
+		if (options.serverPort > 0)
+			new ParsingServer(loadParser(options, args), options.serverPort).serve();
+		
+	}
+	
+	/***
+	 * Loads the model of options.modelFile for decoding only, with the
+	 * arguments applied over the saved options.
+	 */
+	static DependencyParser loadParser(Options options, String[] args)
+			throws IOException, ClassNotFoundException
+	{
+		DependencyParser parser = new DependencyParser();
+		parser.options = options;
+		
+		parser.loadModel();
+		parser.options.processArguments(args);
+		if (parser.options.floatWeights) parser.compactWeights();
+		if (parser.options.quantizedWeights) parser.quantizeWeights(false);
+		return parser;
+	}
+	
+	public Options getOptions()
+	{
+		return options;
+	}
+	
+	public DependencyPipe getPipe()
+	{
+		return pipe;
 	}
 	
 	public void tuneSpeed() throws IOException, CloneNotSupportedException
@@ -136,31 +261,254 @@ public class DependencyParser implements Serializable {
 		System.out.printf(" final converge=%d%n%n", options.numTestConverge);
 	}
 	
+    /***
+     * Switches the parser and its pruner to single precision weights once
+     * training is over.
+     */
+    public void compactWeights()
+    {
+    	parameters.compactWeights();
+    	if (pruner != null) pruner.compactWeights();
+    }
+    
+    /***
+     * Switches the parser and its pruner to int8 weights. With check, the
+     * test set is parsed before and after quantizing to report the loss of
+     * accuracy.
+     */
+    public void quantizeWeights(boolean check) throws IOException
+    {
+    	Evaluator before = check ? evaluate(false, false) : null;
+    	parameters.quantizeWeights();
+    	if (pruner != null) pruner.parameters.quantizeWeights();
+    	if (check) {
+    		Evaluator after = evaluate(false, false);
+    		System.out.printf(" Quantization: UAS %.6f -> %.6f\tLAS %.6f -> %.6f%n",
+    				before.UAS(), after.UAS(), before.LAS(), after.LAS());
+    		if (after.UAS() < before.UAS() - 0.001 || after.LAS() < before.LAS() - 0.001)
+    			System.out.printf("%nWARNING: Quantization loses more than 0.1%% UAS or LAS!%n%n");
+    	}
+    }
+    
+    /***
+     * Saves a copy of the model to the export file, with only the weights of
+     * the parser and the pruner above the export threshold, stored as sparse
+     * arrays. With export-format:mapped the copy is a mapped model instead.
+     */
+    public void exportModel() throws IOException
+    {
+    	if (options.mappedExport) {
+    		saveMappedModel(options.exportFile);
+    	} else {
+	    	parameters.setSparseExport(true, options.exportThreshold);
+	    	if (pruner != null) pruner.parameters.setSparseExport(true, options.exportThreshold);
+	    	try {
+	    		saveModel(options.exportFile);
+	    	} finally {
+	    		parameters.setSparseExport(false, 0);
+	    		if (pruner != null) pruner.parameters.setSparseExport(false, 0);
+	    	}
+    	}
+    	System.out.printf("Exported model to %s%n", options.exportFile);
+    }
+    
     public void saveModel() throws IOException 
     {
-    	ObjectOutputStream out = new ObjectOutputStream(
-    			new GZIPOutputStream(new FileOutputStream(options.modelFile)));
+    	saveModel(options.modelFile);
+    }
+    
+    /***
+     * Saves the model in the format of ModelFileWriter, compressing its
+     * sections with one thread per core.
+     */
+    public void saveModel(String file) throws IOException 
+    {
+    	unmapWeights();
+    	ModelFileWriter out = new ModelFileWriter();
+    	writeModel(out, "");
+    	out.write(file, Runtime.getRuntime().availableProcessors());
+    }
+    
+    private boolean hasPruner()
+    {
+    	return options.pruning && options.learningMode != LearningMode.Basic;
+    }
+    
+    /***
+     * Adds the options, the pipe and the parameters to a model file, in
+     * sections whose names start with prefix, and the pruner, if any, in
+     * sections starting with prefix + "pruner.".
+     */
+    public void writeModel(ModelFileWriter out, String prefix) throws IOException
+    {
+    	options.write(out.section(prefix + "options"));
+    	pipe.write(out.section(prefix + "pipe"));
+    	parameters.write(out, prefix + "parameters");
+    	if (hasPruner())
+    		pruner.writeModel(out, prefix + "pruner.");
+    }
+    
+    /***
+     * Reads the sections written by writeModel. Each part of a model file
+     * can be read on its own, e.g. only the pruner of a model with
+     * new BasicArcPruner().readModel(in, "pruner.").
+     */
+    public void readModel(ModelFileReader in, String prefix) throws IOException
+    {
+    	options = new Options();
+    	options.read(in.section(prefix + "options"));
+    	pipe = new DependencyPipe(in.section(prefix + "pipe"), options);
+    	parameters = new Parameters(in, prefix + "parameters", options,
+    			Runtime.getRuntime().availableProcessors());
+    	if (hasPruner()) {
+    		pruner = new BasicArcPruner();
+    		pruner.readModel(in, prefix + "pruner.");
+    	}
+    }
+    
+    private void writeModel(ObjectOutputStream out) throws IOException
+    {
     	out.writeObject(pipe);
     	out.writeObject(parameters);
     	out.writeObject(options);
-    	if (options.pruning && options.learningMode != LearningMode.Basic) 
+    	if (hasPruner()) 
     		out.writeObject(pruner);
-    	out.close();
+    }
+    
+    /***
+     * Saves the model in a layout whose largest arrays, theta and the label
+     * weights of the parser and the pruner, are mapped into memory instead of
+     * read when loading: a header (magic, version and length of the
+     * serialized part), the serialized model without these arrays, then the
+     * arrays as little-endian floats from the next multiple of 8 bytes.
+     * Processes loading the same file share the pages of the weights.
+     */
+    public void saveMappedModel(String file) throws IOException
+    {
+    	// the file holding the mapped weights is replaced, which some systems
+    	// refuse while it is mapped
+    	if (new File(file).getCanonicalPath().equals(new File(options.modelFile).getCanonicalPath()))
+    		unmapWeights();
+    	
+    	ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    	parameters.setMappedExport(true);
+    	if (hasPruner()) pruner.parameters.setMappedExport(true);
+    	try {
+    		ObjectOutputStream out = new ObjectOutputStream(bytes);
+    		writeModel(out);
+    		out.close();
+    	} finally {
+    		parameters.setMappedExport(false);
+    		if (hasPruner()) pruner.parameters.setMappedExport(false);
+    	}
+    	
+    	File tmp = ModelFileWriter.createTempFile(file);
+    	try {
+	    	RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+	    	try {
+	    		raf.writeInt(MAPPED_MODEL_MAGIC);
+	    		raf.writeInt(MAPPED_MODEL_VERSION);
+	    		raf.writeLong(bytes.size());
+	    		raf.write(bytes.toByteArray());
+	    		
+	    		FileChannel channel = raf.getChannel();
+	    		channel.position(mappedSection(bytes.size()));
+	    		parameters.writeMappedWeights(channel);
+	    		if (hasPruner())
+	    			pruner.parameters.writeMappedWeights(channel);
+	    	} finally {
+	    		raf.close();
+	    	}
+	    	ModelFileWriter.replace(tmp, file);
+    	} finally {
+    		tmp.delete();
+    	}
+    }
+    
+    /***
+     * Copies the weights of a mapped model onto the heap, so that the model
+     * file can be overwritten.
+     */
+    private void unmapWeights()
+    {
+    	parameters.unmapWeights();
+    	if (pruner != null) pruner.parameters.unmapWeights();
+    }
+    
+    private static long mappedSection(long serializedLength)
+    {
+    	return (MAPPED_HEADER_SIZE + serializedLength + 7) & ~7L;
+    }
+    
+    private static boolean isMappedModel(String file) throws IOException
+    {
+    	if (new File(file).length() < 4) return false;
+    	DataInputStream in = new DataInputStream(new FileInputStream(file));
+    	try {
+    		return in.readInt() == MAPPED_MODEL_MAGIC;
+    	} finally {
+    		in.close();
+    	}
     }
 	
     public void loadModel() throws IOException, ClassNotFoundException 
     {
+    	if (isMappedModel(options.modelFile)) {
+    		loadMappedModel();
+    		return;
+    	}
+    	if (ModelFileReader.isModelFile(options.modelFile)) {
+    		ModelFileReader in = new ModelFileReader(options.modelFile);
+    		try {
+    			readModel(in, "");
+    		} finally {
+    			in.close();
+    		}
+    		pipe.closeAlphabets();
+    		return;
+    	}
+    	// models saved as gzipped Java serialization by earlier versions
         ObjectInputStream in = new ObjectInputStream(
                 new GZIPInputStream(new FileInputStream(options.modelFile)));    
+        readModel(in);
+        in.close();
+        pipe.closeAlphabets();
+    }
+    
+    private void readModel(ObjectInputStream in) throws IOException, ClassNotFoundException
+    {
         pipe = (DependencyPipe) in.readObject();
         parameters = (Parameters) in.readObject();
         options = (Options) in.readObject();
-        if (options.pruning && options.learningMode != LearningMode.Basic)
+        if (hasPruner())
         	//pruner = (DependencyParser) in.readObject();
         	pruner = (BasicArcPruner) in.readObject();
         pipe.options = options;
         parameters.options = options;        
-        in.close();
+    }
+    
+    private void loadMappedModel() throws IOException, ClassNotFoundException
+    {
+    	RandomAccessFile raf = new RandomAccessFile(options.modelFile, "r");
+    	try {
+    		raf.readInt();
+    		int version = raf.readInt();
+    		if (version != MAPPED_MODEL_VERSION)
+    			throw new IOException("Unsupported mapped model version " + version);
+    		long length = raf.readLong();
+    		
+    		FileChannel channel = raf.getChannel();
+    		ObjectInputStream in = new ObjectInputStream(
+    				new BufferedInputStream(Channels.newInputStream(channel)));
+    		readModel(in);
+    		
+    		// mappings stay valid after the file is closed
+    		long offset = parameters.mapWeights(channel, mappedSection(length));
+    		if (hasPruner())
+    			pruner.parameters.mapWeights(channel, offset);
+    	} finally {
+    		raf.close();
+    	}
         pipe.closeAlphabets();
     }
     
@@ -176,6 +524,15 @@ public class DependencyParser implements Serializable {
 		return pruningGoldHits / pruningTotGold;
 	}
 	
+	public synchronized void addPruningStats(double goldHits, double totGold,
+			double totUparcs, double totArcs)
+	{
+		pruningGoldHits += goldHits;
+		pruningTotGold += totGold;
+		pruningTotUparcs += totUparcs;
+		pruningTotArcs += totArcs;
+	}
+	
 	public void resetPruningStats()
 	{
 		pruningGoldHits = 0;
@@ -189,6 +546,12 @@ public class DependencyParser implements Serializable {
     {
     	long start = 0, end = 0;
     	
+    	if (options.mixPort > 0)
+    		coordinator = new ParameterCoordinator(options.mixPort, options.numMixWorkers,
+    				options.mixPeriod, lstTrain.length, parameters);
+    	else if (options.mixCoordinator != null)
+    		worker = new ParameterWorker(options.mixCoordinator, lstTrain.length, parameters);
+    	
         if (options.R > 0 && options.gamma < 1 && options.initTensorWithPretrain) {
 
         	Options optionsBak = (Options) options.clone();
@@ -255,17 +618,54 @@ public class DependencyParser implements Serializable {
 		System.out.printf("Training took %d ms.%n", end-start);    		
 		System.out.println("=============================================");
 		System.out.println();		    	
+		
+		if (coordinator != null) coordinator.close();
+		if (worker != null) worker.close();
     }
     
     public void trainIter(DependencyInstance[] lstTrain, boolean evalAndSave) throws IOException
     {
-
-    	DependencyDecoder decoder = DependencyDecoder
-    			.createDependencyDecoder(options);
+    	boolean multiProcess = coordinator != null || worker != null;
+    	int numShards = multiProcess ? 1 : Math.max(1, options.numMixShards);
+    	int numThreads = numShards > 1 ? numShards : 
+    			multiProcess ? 1 : Math.max(1, options.numTrainThreads);
+    	DependencyDecoder[] decoders = new DependencyDecoder[numThreads];
+    	for (int t = 0; t < numThreads; ++t)
+    		decoders[t] = DependencyDecoder.createDependencyDecoder(options);
+    	ExecutorService executorService = numThreads > 1 ?
+    			Executors.newFixedThreadPool(numThreads) : null;
+    	
+    	// parameter mixing: every shard trains its own copy of the parameters,
+    	// the first shard being the parser's parameters themselves
+    	Parameters[] shards = null;
+    	if (numShards > 1) {
+    		shards = new Parameters[numShards];
+    		shards[0] = parameters;
+    		for (int t = 1; t < numShards; ++t)
+    			shards[t] = new Parameters(parameters);
+    		for (Parameters shard : shards)
+    			shard.trackUpdates();
+    	}
     	
     	int N = lstTrain.length;
     	int printPeriod = 10000 < N ? N/10 : 1000;
     	
+    	// multi-process mixing: the workers start from the coordinator's
+    	// parameters and worker k trains on sentences k, k+K, k+2K, ... The
+    	// shards are mixed every mixPeriod of their sentences.
+    	int numWorkers = coordinator != null ? coordinator.numWorkers()
+    			: worker != null ? worker.numWorkers() : 1;
+    	int shardSize = (N + numWorkers - 1) / numWorkers;
+    	int mixPeriod = worker != null ? worker.getPeriod() : options.mixPeriod;
+    	int period = mixPeriod > 0 ? Math.min(mixPeriod, shardSize) : shardSize;
+    	int numRounds = (shardSize + period - 1) / period;
+    	if (coordinator != null)
+    		coordinator.sendState(parameters);
+    	else if (worker != null) {
+    		worker.receiveState(parameters);
+    		parameters.trackUpdates();
+    	}
+    	
     	for (int iIter = 0; iIter < options.maxNumIters; ++iIter) {
     	    
     		if (pruner != null) pruner.resetPruningStats();
@@ -279,42 +679,78 @@ public class DependencyParser implements Serializable {
     		double loss = 0;
     		int uas = 0, tot = 0;
     		start = System.currentTimeMillis();
-                		    		
-    		for (int i = 0; i < N; ++i) {
+            
+    		if (coordinator != null) {
+    			int[] counts = new int[3];
+    			for (int r = 0; r < numRounds; ++r)
+    				loss += coordinator.mix(parameters, options.mixByErrors, counts);
+    			uas = counts[0];
+    			tot = counts[1];
+    		} else if (worker != null) {
+    			for (int r = 0; r < numRounds; ++r) {
+    				double roundLoss = 0;
+    				int[] counts = new int[3];
+    				int end = Math.min((r + 1) * period, shardSize);
+    				for (int j = r * period; j < end; ++j) {
+    					int i = worker.getId() + j * numWorkers;
+    					if (i >= N) break;
+    					roundLoss += trainInstance(lstTrain[i], decoders[0], parameters,
+    							iIter * N + i + 1, offset, counts);
+    				}
+    				worker.mix(parameters, roundLoss, counts);
+    				loss += roundLoss;
+    				uas += counts[0];
+    				tot += counts[1];
+    			}
+    		} else if (executorService == null) {
+    			int[] counts = new int[3];
+	    		for (int i = 0; i < N; ++i) {
+	    			
+	    			if ((i + 1) % printPeriod == 0) {
+					System.out.printf("  %d (time=%ds)", (i+1),
+						(System.currentTimeMillis()-start)/1000);
+	    			}
+	
+	    			loss += trainInstance(lstTrain[i], decoders[0], parameters,
+	    					iIter * N + i + 1, offset, counts);
+	    		}
+	    		uas = counts[0];
+	    		tot = counts[1];
+    		} else {
+    			// Hogwild: workers take sentences from a shared counter and
+    			// update the shared parameters without locking. Mixing: worker
+    			// t trains its own parameters on sentences t, t+K, t+2K, ...
+    			AtomicInteger next = shards == null ? new AtomicInteger(0) : null;
+    			List<Future<TrainingTask>> futures = new ArrayList<Future<TrainingTask>>();
+    			for (int t = 0; t < numThreads; ++t)
+    				futures.add(executorService.submit(new TrainingTask(lstTrain,
+    						decoders[t], shards == null ? parameters : shards[t],
+    						next, t, numThreads, iIter, offset, start, printPeriod)));
+    			double[] weights = new double[numThreads];
+    			double numErrors = 0;
+    			for (int t = 0; t < numThreads; ++t) {
+    				Future<TrainingTask> future = futures.get(t);
+    				TrainingTask task;
+    				try {
+    					task = future.get();
+    				} catch (InterruptedException e) {
+    					throw new RuntimeException("Training thread interupted", e);
+    				} catch (ExecutionException e) {
+    					throw new RuntimeException(e.getCause());
+    				}
+    				loss += task.loss;
+    				uas += task.counts[0];
+    				tot += task.counts[1];
+    				weights[t] = task.counts[2];
+    				numErrors += task.counts[2];
+    			}
     			
-    			if ((i + 1) % printPeriod == 0) {
-				System.out.printf("  %d (time=%ds)", (i+1),
-					(System.currentTimeMillis()-start)/1000);
+    			if (shards != null) {
+    				for (int t = 0; t < numThreads; ++t)
+    					weights[t] = options.mixByErrors && numErrors > 0 ?
+    							weights[t] / numErrors : 1.0 / numThreads;
+    				Parameters.mix(shards, weights);
     			}
-
-    			//DependencyInstance inst = new DependencyInstance(lstTrain[i]);
-    			DependencyInstance inst = lstTrain[i];
-    			LocalFeatureData lfd = new LocalFeatureData(inst, this, true);
-    		    GlobalFeatureData gfd = new GlobalFeatureData(lfd);
-    		    
-    		    int n = inst.length;
-    		    
-    		    DependencyInstance predInst = decoder.decode(inst, lfd, gfd, true);
-
-        		int ua = evaluateUnlabelCorrect(inst, predInst), la = 0;
-    		
-        		uas += ua;
-        		tot += n-1;        		
-        		if (ua != n-1) {
-        			loss += parameters.update(inst, predInst, lfd, gfd,
-        					iIter * N + i + 1, offset);
-                }
-        		
-        		if (options.learnLabel) {
-        			predInst.heads = inst.heads;
-        			lfd.predictLabels(predInst.heads, predInst.deplbids, true);
-        			la = evaluateLabelCorrect(inst, predInst);
-        			if (la != n-1) {
-        				loss += parameters.updateLabel(inst, predInst, lfd, gfd,
-        						iIter * N + i + 1, offset);
-        			}
-        		}
-
     		}
     		System.out.printf("%n  Iter %d\tloss=%.4f\tuas=%.4f\t[%ds]%n", iIter+1,
     				loss, uas/(tot+0.0),
@@ -324,7 +760,7 @@ public class DependencyParser implements Serializable {
     			pruner.printPruningStats();
     		
     		// evaluate on a development set
-    		if (evalAndSave && options.test && ((iIter+1) % 1 == 0 || iIter+1 == options.maxNumIters)) {		
+    		if (evalAndSave && options.test && worker == null && ((iIter+1) % 1 == 0 || iIter+1 == options.maxNumIters)) {		
     			System.out.println();
 	  			System.out.println("_____________________________________________");
 	  			System.out.println();
@@ -344,11 +780,117 @@ public class DependencyParser implements Serializable {
     		} 
     	}
     	
-    	if (evalAndSave && options.average) {
+    	if (evalAndSave && options.average && worker == null) {
             parameters.averageParameters(options.maxNumIters * N);
     	}
 
-        decoder.shutdown();
+    	if (shards != null || worker != null)
+    		parameters.stopTrackingUpdates();
+    	if (executorService != null)
+    		executorService.shutdownNow();
+    	for (DependencyDecoder decoder : decoders)
+    		decoder.shutdown();
+    }
+    
+    /***
+     * Decodes one training sentence and applies the MIRA updates to the given
+     * parameters. Adds the number of correct heads, of tokens and of updated
+     * sentences to counts and returns the loss.
+     */
+    public double trainInstance(DependencyInstance inst, DependencyDecoder decoder,
+    		Parameters parameters, int updCnt, int offset, int[] counts)
+    {
+    	double loss = 0;
+    	boolean updated = false;
+    	
+		LocalFeatureData lfd = new LocalFeatureData(inst, this, true, parameters);
+	    GlobalFeatureData gfd = new GlobalFeatureData(lfd);
+	    
+	    int n = inst.length;
+	    
+	    DependencyInstance predInst = decoder.decode(inst, lfd, gfd, true);
+
+		int ua = evaluateUnlabelCorrect(inst, predInst), la = 0;
+	
+		counts[0] += ua;
+		counts[1] += n-1;        		
+		if (ua != n-1) {
+			loss += parameters.update(inst, predInst, lfd, gfd,
+					updCnt, offset);
+			updated = true;
+        }
+		
+		if (options.learnLabel) {
+			predInst.heads = inst.heads;
+			lfd.predictLabels(predInst.heads, predInst.deplbids, true);
+			la = evaluateLabelCorrect(inst, predInst);
+			if (la != n-1) {
+				loss += parameters.updateLabel(inst, predInst, lfd, gfd,
+						updCnt, offset);
+				updated = true;
+			}
+		}
+		
+		if (updated) ++counts[2];
+		return loss;
+    }
+    
+    class TrainingTask implements Callable<TrainingTask> {
+    	
+    	DependencyInstance[] lstTrain;
+    	DependencyDecoder decoder;
+    	Parameters parameters;
+    	AtomicInteger next;
+    	int shard, numShards;
+    	int iIter, offset, printPeriod;
+    	long start;
+    	
+    	double loss;
+    	int[] counts = new int[3];
+    	
+    	/***
+    	 * Takes sentences from the shared counter next, or if next is null,
+    	 * trains on the sentences of its own shard.
+    	 */
+    	public TrainingTask(DependencyInstance[] lstTrain, DependencyDecoder decoder,
+    			Parameters parameters, AtomicInteger next, int shard, int numShards,
+    			int iIter, int offset, long start, int printPeriod)
+    	{
+    		this.lstTrain = lstTrain;
+    		this.decoder = decoder;
+    		this.parameters = parameters;
+    		this.next = next;
+    		this.shard = shard;
+    		this.numShards = numShards;
+    		this.iIter = iIter;
+    		this.offset = offset;
+    		this.start = start;
+    		this.printPeriod = printPeriod;
+    	}
+    	
+    	@Override
+    	public TrainingTask call()
+    	{
+    		int N = lstTrain.length;
+    		for (int i = nextIndex(-1); i < N; i = nextIndex(i)) {
+    			if ((i + 1) % printPeriod == 0) {
+    				System.out.printf("  %d (time=%ds)", (i+1),
+    						(System.currentTimeMillis()-start)/1000);
+    			}
+    			// updCnt depends only on the sentence index, so the averaging
+    			// weights are the same as in sequential training
+    			loss += trainInstance(lstTrain[i], decoder, parameters,
+    					iIter * N + i + 1, offset, counts);
+    		}
+    		return this;
+    	}
+    	
+    	private int nextIndex(int i)
+    	{
+    		if (next != null)
+    			return next.getAndIncrement();
+    		return i < 0 ? shard : i + numShards;
+    	}
     }
     
     public int evaluateUnlabelCorrect(DependencyInstance act, DependencyInstance pred) 
@@ -401,6 +943,14 @@ public class DependencyParser implements Serializable {
     
     public double evaluateSet(boolean output, boolean evalWithPunc)
     		throws IOException {
+    	return evaluate(output, evalWithPunc).UAS();
+    }
+    
+    /***
+     * Parses the test set, prints the statistics and returns the evaluator.
+     */
+    public Evaluator evaluate(boolean output, boolean evalWithPunc)
+    		throws IOException {
     	
     	if (pruner != null) pruner.resetPruningStats();
     	
@@ -419,27 +969,27 @@ public class DependencyParser implements Serializable {
     	Evaluator eval = new Evaluator(options, pipe);
     	
 		long start = System.currentTimeMillis();
+		decoder.resetStats();
+		ScoreTable.resetStats();
     	
-    	DependencyInstance inst = pipe.createInstance(reader);    	
-    	while (inst != null) {
-    		LocalFeatureData lfd = new LocalFeatureData(inst, this, true);
-    		GlobalFeatureData gfd = new GlobalFeatureData(lfd); 
-
-    		    		
-            DependencyInstance predInst = decoder.decode(inst, lfd, gfd, false);
-            if (options.learnLabel)
-            	lfd.predictLabels(predInst.heads, predInst.deplbids, false);
-            
-            eval.add(inst, predInst, evalWithPunc);
-    		
-    		if (writer != null) {
-    			inst.heads = predInst.heads;
-    			inst.deplbids = predInst.deplbids;
-    			writer.writeInstance(inst);
-    		}
-    		
-    		inst = pipe.createInstance(reader);
-    	}
+		if (options.numTestThreads > 1) {
+			evaluateParallel(reader, writer, eval, evalWithPunc);
+		} else {
+	    	DependencyInstance inst = pipe.createInstance(reader);    	
+	    	while (inst != null) {
+	    		LocalFeatureData lfd = new LocalFeatureData(inst, this, true);
+	    		GlobalFeatureData gfd = new GlobalFeatureData(lfd); 
+	
+	    		    		
+	            DependencyInstance predInst = decoder.decode(inst, lfd, gfd, false);
+	            if (options.learnLabel)
+	            	lfd.predictLabels(predInst.heads, predInst.deplbids, false);
+	            
+	            addPrediction(inst, predInst, eval, writer, evalWithPunc);
+	    		
+	    		inst = pipe.createInstance(reader);
+	    	}
+		}
     	
     	reader.close();
     	if (writer != null) writer.close();
@@ -449,6 +999,9 @@ public class DependencyParser implements Serializable {
     	System.out.printf("  UAS=%.6f\tLAS=%.6f\tCAS=%.6f\t[%.2fs]%n",
     			eval.UAS(), eval.LAS(), eval.CAS(),
     			(System.currentTimeMillis() - start)/1000.0);
+    	decoder.printStats();
+    	if (options.learningMode != LearningMode.Basic)
+    		ScoreTable.printStats();
     	if (options.pruning && options.learningMode != LearningMode.Basic && pruner != null) {
     		pruner.printPruningStats();
     		if (pruner.pruningRecall() < 0.99) {
@@ -460,7 +1013,131 @@ public class DependencyParser implements Serializable {
     	
         decoder.shutdown();
 
-        return eval.UAS();
+        return eval;
+    }
+    
+    /***
+     * Decode the sentences of the reader on a pool of worker threads. At most
+     * a few sentences per thread are in flight; predictions are evaluated and
+     * written in input order.
+     */
+    private void evaluateParallel(DependencyReader reader, DependencyWriter writer,
+    		Evaluator eval, boolean evalWithPunc) throws IOException
+    {
+    	DecodingPool pool = new DecodingPool(this, options, options.numTestThreads);
+    	int window = options.numTestThreads * 4;
+    	
+    	LinkedList<DependencyInstance> pending = new LinkedList<DependencyInstance>();
+    	LinkedList<Future<DependencyInstance>> results = new LinkedList<Future<DependencyInstance>>();
+    	
+    	DependencyInstance inst = pipe.createInstance(reader);
+    	while (inst != null || !pending.isEmpty()) {
+    		while (inst != null && pending.size() < window) {
+    			pending.add(inst);
+    			results.add(pool.submit(inst, true));
+    			inst = pipe.createInstance(reader);
+    		}
+    		DependencyInstance gold = pending.poll();
+    		DependencyInstance predInst = pool.get(results.poll());
+    		addPrediction(gold, predInst, eval, writer, evalWithPunc);
+    	}
+    	
+    	pool.shutdown();
+    }
+    
+    private void addPrediction(DependencyInstance inst, DependencyInstance predInst,
+    		Evaluator eval, DependencyWriter writer, boolean evalWithPunc) throws IOException
+    {
+        eval.add(inst, predInst, evalWithPunc);
+		
+		if (writer != null) {
+			inst.heads = predInst.heads;
+			inst.deplbids = predInst.deplbids;
+			writer.writeInstance(inst);
+		}
+    }
+    
+    // a sentence of parseStream and its parse
+    static class StreamItem {
+    	DependencyInstance inst;
+    	Future<DependencyInstance> result;
+    }
+    static final StreamItem END_OF_STREAM = new StreamItem();
+    
+    /***
+     * Parses the unannotated sentences of in and writes each parse to out as
+     * soon as it and the ones before it are ready, without evaluation. A
+     * reader thread feeds the decoding pool, and at most options.streamWindow
+     * sentences are read but not written, so memory does not grow with the
+     * length of the stream.
+     */
+    public void parseStream(InputStream in, OutputStream out) throws IOException
+    {
+    	final DependencyReader reader = DependencyReader.createDependencyReader(options);
+    	reader.startReading(in);
+    	DependencyWriter writer = DependencyWriter.createDependencyWriter(options, pipe);
+    	writer.startWriting(out);
+    	
+    	int numThreads = Math.max(1, options.numTestThreads);
+    	final DecodingPool pool = new DecodingPool(this, options, numThreads);
+    	final Semaphore window = new Semaphore(options.streamWindow > 0
+    			? options.streamWindow : 4 * numThreads);
+    	final BlockingQueue<StreamItem> queue = new LinkedBlockingQueue<StreamItem>();
+    	final Exception[] error = new Exception[1];
+    	
+    	Thread readerThread = new Thread(new Runnable() {
+			@Override
+			public void run()
+			{
+				try {
+					while (true) {
+						window.acquire();
+						DependencyInstance inst = pipe.createInstance(reader);
+						if (inst == null) break;
+						StreamItem item = new StreamItem();
+						item.inst = inst;
+						item.result = pool.submit(inst, false);
+						queue.put(item);
+					}
+				} catch (Exception e) {
+					error[0] = e;
+				} finally {
+					queue.add(END_OF_STREAM);
+				}
+			}
+		}, "stream-reader");
+    	readerThread.setDaemon(true);
+    	readerThread.start();
+    	
+    	long start = System.currentTimeMillis();
+    	int numSentences = 0;
+    	try {
+	    	for (StreamItem item = queue.take(); item != END_OF_STREAM; item = queue.take()) {
+	    		DependencyInstance predInst = pool.get(item.result);
+	    		item.inst.heads = predInst.heads;
+	    		item.inst.deplbids = predInst.deplbids;
+	    		// the window is released once the parse is written, not queued
+	    		writer.writeInstance(item.inst, new Runnable() {
+	    			@Override
+	    			public void run()
+	    			{
+	    				window.release();
+	    			}
+	    		});
+	    		++numSentences;
+	    	}
+    	} catch (InterruptedException e) {
+    		throw new RuntimeException("Interrupted while parsing", e);
+    	} finally {
+    		pool.shutdown();
+    		writer.close();
+    		reader.close();
+    	}
+    	if (error[0] instanceof IOException) throw (IOException) error[0];
+    	if (error[0] != null) throw new RuntimeException(error[0]);
+    	
+    	System.out.printf("  Parsed %d sentences [%.2fs]%n", numSentences,
+    			(System.currentTimeMillis() - start)/1000.0);
     }
     
     public double evaluateWithConvergeNum(int converge) throws IOException, CloneNotSupportedException 
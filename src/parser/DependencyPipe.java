@@ -8,6 +8,8 @@ import gnu.trove.map.hash.TObjectIntHashMap;
 
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.FileInputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
@@ -15,9 +17,10 @@ import java.io.IOException;
 import java.io.FileNotFoundException;
 import java.io.InputStreamReader;
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedList;
+import java.util.Map;
 
 //import javax.swing.text.html.HTMLDocument.HTMLReader.TagAction;
 
@@ -27,11 +30,14 @@ import parser.Options.PossibleLang;
 import parser.feature.FeatureTemplate;
 import parser.feature.FeatureTemplate.Arc;
 import parser.feature.SyntacticFeatureFactory;
+import parser.io.CorpusCache;
 import parser.io.DependencyReader;
 import utils.Alphabet;
 import utils.Dictionary;
 import utils.DictionarySet;
 import utils.FeatureVector;
+import utils.ModelFileReader;
+import utils.ModelFileWriter;
 import utils.Utils;
 import static parser.feature.FeatureTemplate.Arc.*;
 import static parser.feature.FeatureTemplate.Word.*;
@@ -72,6 +78,67 @@ public class DependencyPipe implements Serializable {
 		loadLanguageInfo();
 	}
 	
+	/***
+	 * Reads a pipe written by write().
+	 */
+	public DependencyPipe(DataInputStream in, Options options) throws IOException
+	{
+		this.options = options;
+		dictionaries = new DictionarySet(in);
+		synFactory = new SyntacticFeatureFactory(in, options);
+		
+		if (in.readBoolean()) {
+			wordVectors = new double[in.readInt()][];
+			for (int i = 0; i < wordVectors.length; ++i)
+				wordVectors[i] = ModelFileReader.readDoubles(in);
+		}
+		unknownWv = ModelFileReader.readDoubles(in);
+		synFactory.wordVectors = wordVectors;
+		synFactory.unknownWv = unknownWv;
+		
+		types = ModelFileReader.readStrings(in);
+		args = ModelFileReader.readStrings(in);
+		
+		conjWord = new HashSet<String>();
+		for (int i = 0, n = in.readInt(); i < n; ++i)
+			conjWord.add(in.readUTF());
+		coarseMap = new HashMap<String, String>();
+		for (int i = 0, n = in.readInt(); i < n; ++i) {
+			String fine = in.readUTF();
+			coarseMap.put(fine, in.readUTF());
+		}
+	}
+	
+	/***
+	 * Writes the dictionaries, the feature factory, the word vectors, the
+	 * labels and the language information to a model file section.
+	 */
+	public void write(DataOutputStream out) throws IOException
+	{
+		dictionaries.write(out);
+		synFactory.write(out);
+		
+		out.writeBoolean(wordVectors != null);
+		if (wordVectors != null) {
+			out.writeInt(wordVectors.length);
+			for (double[] v : wordVectors)
+				ModelFileWriter.writeDoubles(out, v);
+		}
+		ModelFileWriter.writeDoubles(out, unknownWv);
+		
+		ModelFileWriter.writeStrings(out, types);
+		ModelFileWriter.writeStrings(out, args);
+		
+		out.writeInt(conjWord.size());
+		for (String word : conjWord)
+			out.writeUTF(word);
+		out.writeInt(coarseMap.size());
+		for (Map.Entry<String, String> entry : coarseMap.entrySet()) {
+			out.writeUTF(entry.getKey());
+			out.writeUTF(entry.getValue());
+		}
+	}
+	
 	/***
 	 * load language specific information
 	 * ccDepType: coordination dependency type
@@ -190,10 +257,10 @@ public class DependencyPipe implements Serializable {
 	 * corresponding integer IDs. This method is called before creating 
 	 * the feature alphabets and before training a dependency model. 
 	 * 
-	 * @param file file path of the training data
+	 * @param corpus sentences of the training data, see readCorpus
 	 * @throws IOException
 	 */
-	public void createDictionaries(String file) throws IOException 
+	public void createDictionaries(DependencyInstance[] corpus) throws IOException 
 	{
 		
 		long start = System.currentTimeMillis();
@@ -204,19 +271,8 @@ public class DependencyPipe implements Serializable {
 		
         dictionaries.setCounters();
         
-		DependencyReader reader = DependencyReader.createDependencyReader(options);
-		reader.startReading(file);
-		DependencyInstance inst = reader.nextInstance();
-		
-		int cnt = 0;
-		while (inst != null) {
+		for (DependencyInstance inst : corpus)
 			inst.setInstIds(dictionaries, coarseMap, conjWord, options.lang);
-			
-			inst = reader.nextInstance();	
-			++cnt;
-			if (options.maxNumSent != -1 && cnt >= options.maxNumSent) break;
-		}
-		reader.close();
 		
 		//dumpPathStats(pathCounts, pathlengthCounts);
 		
@@ -224,6 +280,16 @@ public class DependencyPipe implements Serializable {
 		//dictionaries.filterDictionary(WORD);
 		dictionaries.closeCounters();
 		
+		closeDictionaries();
+		System.out.printf("Creation took [%d ms]%n", System.currentTimeMillis() - start);
+	}
+	
+	/***
+	 * Stop the growth of the dictionaries and set the special tokens and the
+	 * bit widths of the feature factory from them.
+	 */
+	private void closeDictionaries()
+	{
 		synFactory.TOKEN_START = dictionaries.lookupIndex(POS, "#TOKEN_START#");
 		synFactory.TOKEN_END = dictionaries.lookupIndex(POS, "#TOKEN_END#");
 		synFactory.TOKEN_MID = dictionaries.lookupIndex(POS, "#TOKEN_MID#");
@@ -265,7 +331,6 @@ public class DependencyPipe implements Serializable {
 				dictionaries.size(POS), synFactory.tagNumBits,
 				dictionaries.size(DEPLABEL), synFactory.depNumBits);
 		System.out.printf("Flag Bits: %d%n", synFactory.flagBits);
-		System.out.printf("Creation took [%d ms]%n", System.currentTimeMillis() - start);
 	}
 
 
@@ -274,13 +339,13 @@ public class DependencyPipe implements Serializable {
 	 * its integer index (starting from index 0). This method is called
 	 * before training a dependency model.
 	 * 
-	 * @param file  file path of the training data
+	 * @param corpus  sentences of the training data, see readCorpus
 	 * @throws IOException
 	 */
-	public void createAlphabets(String file) throws IOException 
+	public void createAlphabets(DependencyInstance[] corpus) throws IOException 
 	{
 	
-		createDictionaries(file);
+		createDictionaries(corpus);
 		
 		if (options.wordVectorFile != null)
 			loadWordVectors(options.wordVectorFile);
@@ -290,14 +355,9 @@ public class DependencyPipe implements Serializable {
 		
 		HashSet<String> posTagSet = new HashSet<String>();
 		HashSet<String> cposTagSet = new HashSet<String>();
-		DependencyReader reader = DependencyReader.createDependencyReader(options);
-		reader.startReading(file);
-		
-		DependencyInstance inst = reader.nextInstance();
-		int cnt = 0;
 		Evaluator eval = new Evaluator(options, this);
 		
-		while(inst != null) {
+		for (DependencyInstance inst : corpus) {
 			
 			for (int i = 0; i < inst.length; ++i) {
 				if (inst.postags != null) posTagSet.add(inst.postags[i]);
@@ -308,16 +368,11 @@ public class DependencyPipe implements Serializable {
 			
 			eval.add(inst, inst, false);
 		    synFactory.initFeatureAlphabets(inst);
-				
-		    inst = reader.nextInstance();
-		    cnt++;
-	        if (options.maxNumSent != -1 && cnt >= options.maxNumSent) break;
 		}
 				
 		System.out.printf("[%d ms]%n", System.currentTimeMillis() - start);
 		
 		closeAlphabets();
-		reader.close();
 
 		System.out.printf("Num of CONLL fine POS tags: %d%n", posTagSet.size());
 		System.out.printf("Num of CONLL coarse POS tags: %d%n", cposTagSet.size());
@@ -418,54 +473,128 @@ public class DependencyPipe implements Serializable {
     }
     
     
-    public DependencyInstance[] createInstances(String file) throws IOException 
+    /***
+     * Read the sentences of a corpus, at most options.maxNumSent of them, so
+     * that the dictionaries, the alphabets and the instances of one or more
+     * pipes are created without reading the file again. Equal strings of the
+     * corpus share one copy.
+     */
+    public static DependencyInstance[] readCorpus(Options options, String file) throws IOException 
     {
-    	
     	long start = System.currentTimeMillis();
-    	System.out.print("Creating instances ... ");
+    	System.out.print("Reading corpus ... ");
     	
     	DependencyReader reader = DependencyReader.createDependencyReader(options);
 		reader.startReading(file);
 
-		LinkedList<DependencyInstance> lt = new LinkedList<DependencyInstance>();
+		ArrayList<DependencyInstance> lt = new ArrayList<DependencyInstance>();
+		HashMap<String, String> pool = new HashMap<String, String>();
 		DependencyInstance inst = reader.nextInstance();
-						
-		int cnt = 0;
-		while(inst != null) {
-			
-			inst.setInstIds(dictionaries, coarseMap, conjWord, options.lang);
-			
-		    //createFeatures(inst);
-			lt.add(new DependencyInstance(inst));		    
+		while (inst != null) {
+			share(inst.forms, pool);
+			share(inst.lemmas, pool);
+			share(inst.cpostags, pool);
+			share(inst.postags, pool);
+			share(inst.deprels, pool);
+			if (inst.feats != null)
+				for (String[] feats : inst.feats) share(feats, pool);
+			lt.add(inst);
 			
+			if (options.maxNumSent != -1 && lt.size() >= options.maxNumSent) break;
+			if (lt.size() % 1000 == 0)
+				System.out.printf("%d ", lt.size());
 			inst = reader.nextInstance();
-			cnt++;
-			if (options.maxNumSent != -1 && cnt >= options.maxNumSent) break;
-			if (cnt % 1000 == 0)
-				System.out.printf("%d ", cnt);
 		}
-				
 		reader.close();
+		
+		System.out.printf("%d [%d ms]%n", lt.size(), System.currentTimeMillis() - start);
+		return lt.toArray(new DependencyInstance[lt.size()]);
+    }
+    
+    private static void share(String[] items, HashMap<String, String> pool)
+    {
+    	if (items == null) return;
+    	for (int i = 0; i < items.length; ++i) {
+    		if (items[i] == null) continue;
+    		String item = pool.get(items[i]);
+    		if (item == null)
+    			pool.put(items[i], items[i]);
+    		else
+    			items[i] = item;
+    	}
+    }
+    
+    /***
+     * Create the instances of a corpus read by readCorpus. They have their
+     * own arrays of ids, so the corpus can be used by another pipe next.
+     */
+    public DependencyInstance[] createInstances(DependencyInstance[] corpus) throws IOException 
+    {
+    	long start = System.currentTimeMillis();
+    	System.out.print("Creating instances ... ");
+    	
+    	DependencyInstance[] insts = new DependencyInstance[corpus.length];
+    	for (int i = 0; i < corpus.length; ++i) {
+    		corpus[i].setInstIds(dictionaries, coarseMap, conjWord, options.lang);
+    		insts[i] = new DependencyInstance(corpus[i]);
+    	}
 		closeAlphabets();
-				
-		DependencyInstance[] insts = new DependencyInstance[lt.size()];
-		int N = 0;
-		for (DependencyInstance p : lt) {
-			insts[N++] = p;
-		}
 		
-		System.out.printf("%d [%d ms]%n", cnt, System.currentTimeMillis() - start);
-	    
+		System.out.printf("%d [%d ms]%n", insts.length, System.currentTimeMillis() - start);
 		return insts;
-	}
+    }
     
+    /***
+     * Create the dictionaries, the alphabets and the instances of a corpus
+     * from its cache instead of the corpus file, see CorpusCache. The
+     * instances have ids only, like the ones of createInstances.
+     */
+    public DependencyInstance[] createInstances(CorpusCache cache) throws IOException 
+    {
+    	DependencyInstance[] corpus = cache.read(this);
+    	closeDictionaries();
+    	
+		if (options.wordVectorFile != null)
+			loadWordVectors(options.wordVectorFile);
+		
+		long start = System.currentTimeMillis();
+		System.out.print("Creating Alphabet ... ");
+		for (DependencyInstance inst : corpus)
+		    synFactory.initFeatureAlphabets(inst);
+		System.out.printf("[%d ms]%n", System.currentTimeMillis() - start);
+		
+		closeAlphabets();
+		
+		System.out.printf("Num of labels: %d%n", types.length);
+		System.out.printf("Num of Syntactic Features: %d %d%n", 
+				synFactory.numWordFeats, synFactory.numArcFeats);
+		
+    	DependencyInstance[] insts = new DependencyInstance[corpus.length];
+    	for (int i = 0; i < corpus.length; ++i)
+    		insts[i] = new DependencyInstance(corpus[i]);
+    	return insts;
+    }
+    
+    /***
+     * Set the ids of a sentence once the dictionaries are closed. Safe to
+     * call from several threads, since closed dictionaries are only read.
+     */
+    public void setInstIds(DependencyInstance inst)
+    {
+    	inst.setInstIds(dictionaries, coarseMap, conjWord, options.lang);
+    }
+    
+    /***
+     * Read the next sentence of the reader and set its ids. Safe to call from
+     * several threads with their own readers, see setInstIds.
+     */
     public DependencyInstance createInstance(DependencyReader reader) throws IOException 
     {
     	
     	DependencyInstance inst = reader.nextInstance();
     	if (inst == null) return null;
     	
-    	inst.setInstIds(dictionaries, coarseMap, conjWord, options.lang);
+    	setInstIds(inst);
     			
 	    //createFeatures(inst);
 	    
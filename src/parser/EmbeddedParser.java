@@ -0,0 +1,114 @@
+package parser;
+
+import java.io.IOException;
+
+/***
+ * Entry point for parsing from Java code. The model is loaded once and
+ * shared read-only by all the threads that call parse. Each call decodes on
+ * the calling thread with a decoder borrowed from a pool of numDecoders, so
+ * at most that many sentences are decoded at once and further calls wait for
+ * a free decoder. Parsing does not read files and does not change the model
+ * or its options.
+ *
+ *   EmbeddedParser parser = EmbeddedParser.load("english.model", 8);
+ *   EmbeddedParser.Parse parse = parser.parse(tokens, tags);
+ *   ...
+ *   parser.close();
+ */
+public class EmbeddedParser {
+
+	/***
+	 * Dependency tree of a sentence: heads[i] is the head of token i,
+	 * counting tokens from 1 and with 0 for the root, and labels[i] is the
+	 * label of its arc, or null if the model has no labels. Both arrays
+	 * have the length of the sentence, token i being at index i - 1.
+	 */
+	public static class Parse {
+		public final int[] heads;
+		public final String[] labels;
+
+		Parse(int[] heads, String[] labels)
+		{
+			this.heads = heads;
+			this.labels = labels;
+		}
+	}
+
+	final DependencyParser parser;
+	final DecodingPool pool;
+
+	/***
+	 * Loads a model for numDecoders concurrent sentences. args are options
+	 * as on the command line, applied over the options saved with the
+	 * model, e.g. "weights:int8" or "thread:2".
+	 */
+	public static EmbeddedParser load(String modelFile, int numDecoders, String... args)
+			throws IOException
+	{
+		Options options = new Options();
+		options.processArguments(args);
+		options.modelFile = modelFile;
+		try {
+			return new EmbeddedParser(DependencyParser.loadParser(options, args), numDecoders);
+		} catch (ClassNotFoundException e) {
+			throw new IOException("Cannot read model " + modelFile, e);
+		}
+	}
+
+	public EmbeddedParser(DependencyParser parser, int numDecoders)
+	{
+		this.parser = parser;
+		pool = new DecodingPool(parser, parser.options, numDecoders);
+	}
+
+	/***
+	 * Parses a sentence given its tokens and their POS tags. Safe to call
+	 * from several threads at once.
+	 */
+	public Parse parse(String[] tokens, String[] tags)
+	{
+		if (tokens.length != tags.length)
+			throw new IllegalArgumentException(String.format(
+					"%d tokens but %d tags", tokens.length, tags.length));
+
+		// the sentence as read by the CoNLL readers, with the root first
+		int n = tokens.length + 1;
+		String[] forms = new String[n];
+		String[] pos = new String[n];
+		String[] cpos = new String[n];
+		String[] deprels = new String[n];
+		int[] heads = new int[n];
+		forms[0] = "<root>";
+		cpos[0] = "<root-CPOS>";
+		pos[0] = "<root-POS>";
+		deprels[0] = "<no-type>";
+		heads[0] = -1;
+		for (int i = 1; i < n; ++i) {
+			forms[i] = tokens[i-1];
+			pos[i] = cpos[i] = tags[i-1];
+			deprels[i] = "<no-type>";
+			heads[i] = -1;
+		}
+		DependencyInstance inst = new DependencyInstance(forms, null, cpos, pos,
+				new String[n][], heads, deprels);
+		parser.pipe.setInstIds(inst);
+
+		DependencyInstance predInst = pool.decode(inst, false);
+
+		int[] predHeads = new int[n - 1];
+		String[] labels = parser.options.learnLabel ? new String[n - 1] : null;
+		for (int i = 1; i < n; ++i) {
+			predHeads[i-1] = predInst.heads[i];
+			if (labels != null) labels[i-1] = parser.pipe.types[predInst.deplbids[i]];
+		}
+		return new Parse(predHeads, labels);
+	}
+
+	/***
+	 * Releases the decoders. The parser cannot be used afterwards.
+	 */
+	public void close()
+	{
+		pool.shutdown();
+	}
+}
@@ -1,11 +1,10 @@
 package parser;
 
-import java.util.Arrays;
-
 import parser.DependencyInstance.SpecialPos;
 import parser.feature.FeatureTemplate.Arc;
 import parser.feature.SyntacticFeatureFactory;
 import utils.FeatureVector;
+import utils.ScoreTable;
 import utils.Utils;
 import static utils.DictionarySet.DictionaryTypes.*;
 import static parser.LocalFeatureData.NULL;
@@ -22,55 +21,79 @@ public class GlobalFeatureData {
 	SyntacticFeatureFactory synFactory;
 
 	//FeatureDataItem[] cn;	// [len][leftNum][rightNum]
-	double[] cn;		// [len][leftNum][rightNum]
+	ScoreTable cn;		// [len][leftNum][rightNum]
 
 	//FeatureDataItem[] span;	// [len][end][punc][bin]
-	double[] span;	// [len][end][punc][bin]
+	ScoreTable span;	// [len][end][punc][bin]
 
 	//FeatureDataItem[] nb;		// [maxid][cpos][cpos]
-	double[] nb;		// [maxid][cpos][cpos]
+	ScoreTable nb;		// [maxid][cpos][cpos]
 
 	//FeatureDataItem[] ppcc1;	// pp attachment, punc head and part of conjunction
-	double[] ppcc1;	// pp attachment, punc head and part of conjunction
+	ScoreTable ppcc1;	// pp attachment, punc head and part of conjunction
 
 	//FeatureDataItem[] cc2;		// [arg][head][left/right]
-	double[] cc2;		// [arg][head][left/right]
+	ScoreTable cc2;		// [arg][head][left/right]
 
 	//FeatureDataItem[] nonproj;	// nonproj arc, [dep id][nonproj binned num]
 	double[] nonproj;	// nonproj arc, [dep id][nonproj binned num]
+	
+	ScoreTable rightBranch;	// [right branch length]
+	
+	int[] puncPair;		// counterpart of each punctuation token, -1 if none
 
 	public GlobalFeatureData(LocalFeatureData lfd) 
 	{
 		this.lfd = lfd;
 		pipe = lfd.pipe;
 		synFactory = pipe.synFactory;
-		
+		reset();
+	}
+	
+	/***
+	 * Prepares the tables for the sentence lfd was last reset to, reusing
+	 * those of the previous sentence where they are large enough.
+	 */
+	public void reset()
+	{
 		// init array
 		if (lfd.options.useHO) {
 			//cn = new FeatureDataItem[lfd.len * (MAX_CHILD_NUM + 1) * (MAX_CHILD_NUM + 1)];
-			cn = new double[lfd.len * (MAX_CHILD_NUM + 1) * (MAX_CHILD_NUM + 1)];
-			Arrays.fill(cn, NULL);
+			cn = LocalFeatureData.createDenseTable(cn, lfd.len * (MAX_CHILD_NUM + 1) * (MAX_CHILD_NUM + 1));
 			
 			//span = new FeatureDataItem[lfd.len * 2 * 2 * (MAX_SPAN_LENGTH + 1)];
-			span = new double[lfd.len * 2 * 2 * (MAX_SPAN_LENGTH + 1)];
-			Arrays.fill(span, NULL);
+			span = LocalFeatureData.createDenseTable(span, lfd.len * 2 * 2 * (MAX_SPAN_LENGTH + 1));
 
 			//nb = new FeatureDataItem[lfd.nuparcs * pipe.dictionaries.size(POS) * pipe.dictionaries.size(POS)];
-			nb = new double[lfd.numarcs * (pipe.dictionaries.size(POS)+1) * (pipe.dictionaries.size(POS)+1)];
-			Arrays.fill(nb, NULL);
+			nb = LocalFeatureData.createDenseTable(nb, lfd.numarcs * (pipe.dictionaries.size(POS)+1) * (pipe.dictionaries.size(POS)+1));
 
 			//ppcc1 = new FeatureDataItem[lfd.len * lfd.len * lfd.len];	// pp attachment, punc head and part of conjunction
-			ppcc1 = new double[lfd.len * lfd.len * lfd.len];	// pp attachment, punc head and part of conjunction
-			Arrays.fill(ppcc1, NULL);
+			ppcc1 = LocalFeatureData.createDenseTable(ppcc1, lfd.len * lfd.len * lfd.len);	// pp attachment, punc head and part of conjunction
 
 			//cc2 = new FeatureDataItem[lfd.len * lfd.len * lfd.len];		// arg, head, left/right
-			cc2 = new double[lfd.len * lfd.len * lfd.len];
-			Arrays.fill(cc2, NULL);
+			cc2 = LocalFeatureData.createDenseTable(cc2, lfd.len * lfd.len * lfd.len);
 
 			//nonproj = new FeatureDataItem[lfd.nuparcs * BINNED_BUCKET];	// nonproj arc, [dep id][nonproj binned num]
+			
+			rightBranch = LocalFeatureData.createDenseTable(rightBranch, lfd.len + 1);
+			
+			if (puncPair == null || puncPair.length < lfd.len)
+				puncPair = new int[lfd.len];
+			for (int i = 0; i < lfd.len; ++i)
+				puncPair[i] = SpecialPos.PNX == lfd.inst.specialPos[i] ?
+						synFactory.findPuncCounterpart(lfd.inst.formids, i) : -1;
 		}
 	}
 
+	/***
+	 * Stops threads from waiting for scores claimed by other threads, once
+	 * the sentence is no longer decoded.
+	 */
+	public void abandonScoreTables() {
+		for (ScoreTable table : new ScoreTable[] { cn, span, nb, ppcc1, cc2, rightBranch })
+			if (table != null) table.abandon();
+	}
+
 	public FeatureVector getPPFeatureVector(int gp, int h, int m) {
 		// (h,m) may not be an arc
 
@@ -78,7 +101,7 @@ public class GlobalFeatureData {
 		
 		int pos = (h * lfd.len + gp) * lfd.len + m;		// h is preposition, different from conj/punc
 		FeatureVector fv = synFactory.createPPFeatureVector(lfd.inst, gp, h, m);
-		ppcc1[pos] = lfd.parameters.dotProduct(fv) * lfd.gamma;
+		ppcc1.put(pos, lfd.parameters.dotProduct(fv) * lfd.gamma);
 		return fv;
 	}
 	
@@ -87,7 +110,7 @@ public class GlobalFeatureData {
 		
 		int pos = (arg * lfd.len + left) * lfd.len + right;		// arg is conj, different from prep/punc
 		FeatureVector fv = synFactory.createCC1FeatureVector(lfd.inst, left, arg, right);
-		ppcc1[pos] = lfd.parameters.dotProduct(fv) * lfd.gamma;
+		ppcc1.put(pos, lfd.parameters.dotProduct(fv) * lfd.gamma);
 		return fv;
 	}
 	
@@ -96,7 +119,7 @@ public class GlobalFeatureData {
 		
 		int pos = (arg * lfd.len + head) * lfd.len + child;	
 		FeatureVector fv = synFactory.createCC2FeatureVector(lfd.inst, arg, head, child);
-		cc2[pos] = lfd.parameters.dotProduct(fv) * lfd.gamma;
+		cc2.put(pos, lfd.parameters.dotProduct(fv) * lfd.gamma);
 		return fv;
 	}
 	
@@ -105,7 +128,7 @@ public class GlobalFeatureData {
 		
 		int pos = (arg * lfd.len + head) * lfd.len + pair;		// arg is punc, different from prep/conj
 		FeatureVector fv = synFactory.createPNXFeatureVector(lfd.inst, head, arg, pair);
-		ppcc1[pos] = lfd.parameters.dotProduct(fv) * lfd.gamma;
+		ppcc1.put(pos, lfd.parameters.dotProduct(fv) * lfd.gamma);
 		return fv;
 	}
 	
@@ -114,7 +137,7 @@ public class GlobalFeatureData {
 		
 		int pos = ((h * 2 + end) * 2 + punc) * (MAX_SPAN_LENGTH + 1) + bin;
 		FeatureVector fv = synFactory.createSpanFeatureVector(lfd.inst, h, end, punc, bin);
-		span[pos] = lfd.parameters.dotProduct(fv) * lfd.gamma;
+		span.put(pos, lfd.parameters.dotProduct(fv) * lfd.gamma);
 		return fv;
 	}
 	
@@ -126,7 +149,7 @@ public class GlobalFeatureData {
 		
 		int pos = (id * size + left) * size + right;		
 		FeatureVector fv = synFactory.createNeighborFeatureVector(lfd.inst, par, h, left, right);
-		nb[pos] = lfd.parameters.dotProduct(fv) * lfd.gamma;
+		nb.put(pos, lfd.parameters.dotProduct(fv) * lfd.gamma);
 		return fv;
 	}
 	
@@ -135,7 +158,7 @@ public class GlobalFeatureData {
 		
 		int pos = (h * (MAX_CHILD_NUM + 1) + leftNum) * (MAX_CHILD_NUM + 1) + rightNum;		
 		FeatureVector fv = synFactory.createChildNumFeatureVector(lfd.inst, h, leftNum, rightNum);
-		cn[pos] = lfd.parameters.dotProduct(fv) * lfd.gamma;
+		cn.put(pos, lfd.parameters.dotProduct(fv) * lfd.gamma);
 		return fv;
 	}
 	
@@ -157,50 +180,90 @@ public class GlobalFeatureData {
 		Utils.Assert(lfd.arc2id[h * lfd.len + gp] >= 0);
 		
 		int pos = (h * lfd.len + gp) * lfd.len + m;		// h is preposition, different from conj/punc
-		if (ppcc1[pos] == NULL)
-			getPPFeatureVector(gp, h, m);
+		double score = ppcc1.getOrClaim(pos);
+		if (score == NULL) {
+			try {
+				FeatureVector fv = synFactory.createPPFeatureVector(lfd.inst, gp, h, m);
+				score = lfd.parameters.dotProduct(fv) * lfd.gamma;
+				ppcc1.put(pos, score);
+			} finally {
+				ppcc1.release(pos);
+			}
+		}
 
-		return ppcc1[pos];
+		return score;
 	}
 	
 	public double getCC1Score(int left, int arg, int right) {
 		// dependency relation is not known, cannot check
 		
 		int pos = (arg * lfd.len + left) * lfd.len + right;		// arg is conj, different from prep/punc
-		if (ppcc1[pos] == NULL)
-			getCC1FeatureVector(left, arg, right);
+		double score = ppcc1.getOrClaim(pos);
+		if (score == NULL) {
+			try {
+				FeatureVector fv = synFactory.createCC1FeatureVector(lfd.inst, left, arg, right);
+				score = lfd.parameters.dotProduct(fv) * lfd.gamma;
+				ppcc1.put(pos, score);
+			} finally {
+				ppcc1.release(pos);
+			}
+		}
 
-		return ppcc1[pos];
+		return score;
 	}
 	
 	public double getCC2Score(int arg, int head, int child) {
 		// dependency relation is not known, cannot check
 		
 		int pos = (arg * lfd.len + head) * lfd.len + child;	
-		if (cc2[pos] == NULL)
-			getCC2FeatureVector(arg, head, child);
+		double score = cc2.getOrClaim(pos);
+		if (score == NULL) {
+			try {
+				FeatureVector fv = synFactory.createCC2FeatureVector(lfd.inst, arg, head, child);
+				score = lfd.parameters.dotProduct(fv) * lfd.gamma;
+				cc2.put(pos, score);
+			} finally {
+				cc2.release(pos);
+			}
+		}
 
-		return cc2[pos];
+		return score;
 	}
 	
 	public double getPNXScore(int head, int arg, int pair) {
 		// dependency relation is not known, cannot check
 		
 		int pos = (arg * lfd.len + head) * lfd.len + pair;		// arg is punc, different from prep/conj
-		if (ppcc1[pos] == NULL)
-			getPNXFeatureVector(head, arg, pair);
+		double score = ppcc1.getOrClaim(pos);
+		if (score == NULL) {
+			try {
+				FeatureVector fv = synFactory.createPNXFeatureVector(lfd.inst, head, arg, pair);
+				score = lfd.parameters.dotProduct(fv) * lfd.gamma;
+				ppcc1.put(pos, score);
+			} finally {
+				ppcc1.release(pos);
+			}
+		}
 
-		return ppcc1[pos];
+		return score;
 	}
 	
 	public double getSpanScore(int h, int end, int punc, int bin) {
 		Utils.Assert(bin <= MAX_SPAN_LENGTH);
 		
 		int pos = ((h * 2 + end) * 2 + punc) * (MAX_SPAN_LENGTH + 1) + bin;	
-		if (span[pos] == NULL)
-			getSpanFeatureVector(h, end, punc, bin);
+		double score = span.getOrClaim(pos);
+		if (score == NULL) {
+			try {
+				FeatureVector fv = synFactory.createSpanFeatureVector(lfd.inst, h, end, punc, bin);
+				score = lfd.parameters.dotProduct(fv) * lfd.gamma;
+				span.put(pos, score);
+			} finally {
+				span.release(pos);
+			}
+		}
 
-		return span[pos];
+		return score;
 	}
 	
 	public double getNeighborScore(int par, int h, int left, int right) {
@@ -210,20 +273,35 @@ public class GlobalFeatureData {
 		Utils.Assert(id >= 0);
 		
 		int pos = (id * size + left) * size + right;		
-		if (nb[pos] == NULL)
-			getNeighborFeatureVector(par, h, left, right);
+		double score = nb.getOrClaim(pos);
+		if (score == NULL) {
+			try {
+				FeatureVector fv = synFactory.createNeighborFeatureVector(lfd.inst, par, h, left, right);
+				score = lfd.parameters.dotProduct(fv) * lfd.gamma;
+				nb.put(pos, score);
+			} finally {
+				nb.release(pos);
+			}
+		}
 
-		return nb[pos];
+		return score;
 	}
 	
 	public double getChildNumScore(int h, int leftNum, int rightNum) {
 		Utils.Assert(leftNum <= MAX_CHILD_NUM && rightNum <= MAX_CHILD_NUM);
 		
 		int pos = (h * (MAX_CHILD_NUM + 1) + leftNum) * (MAX_CHILD_NUM + 1) + rightNum;		
-		if (cn[pos] == NULL) {
-			getChildNumFeatureVector(h, leftNum, rightNum);
+		double score = cn.getOrClaim(pos);
+		if (score == NULL) {
+			try {
+				FeatureVector fv = synFactory.createChildNumFeatureVector(lfd.inst, h, leftNum, rightNum);
+				score = lfd.parameters.dotProduct(fv) * lfd.gamma;
+				cn.put(pos, score);
+			} finally {
+				cn.release(pos);
+			}
 		}
-		return cn[pos];
+		return score;
 	}
 	
 	public double getNonprojScore(DependencyArcList arclis, int h, int m) {
@@ -363,123 +441,149 @@ public class GlobalFeatureData {
 	
 	public double getScore(int[] heads, DependencyArcList arcLis) {
 		
-		DependencyInstance now = lfd.inst;
-		
-		FeatureVector tmpFv = new FeatureVector(lfd.size);
 		double score = 0.0;	
 		
 		if (!lfd.options.useHO)
 			return score;
 		
-		int[] toks = now.formids;
-		int len = now.length;
-		//DependencyArcList arcLis = new DependencyArcList(heads, lfd.options.useHO);
+		int len = lfd.inst.length;
+		for (int i = 0; i < len; ++i)
+			score += getTokenScore(heads, arcLis, i);
+		score += getRightBranchScore(arcLis);
 		
-		// non-proj
-		//for (int i = 0; i < len; ++i) {
-		//	if (heads[i] == -1)
-		//		continue;
-		//	score += getNonprojScore(arcLis, heads[i], i);
-		//}
-
+		return score;
+	}
+	
+	/***
+	 * Sum of the global factors owned by token i: pp attachment, conjunction
+	 * and punctuation pair if i is such a token, plus the child number, span
+	 * and neighbor factors of i. The right branch factor belongs to the
+	 * whole tree and is scored by getRightBranchScore().
+	 */
+	public double getTokenScore(int[] heads, DependencyArcList arcLis, int i) {
+		
+		DependencyInstance now = lfd.inst;
+		double score = 0.0;
+		
+		int len = now.length;
 		int[] pos = now.postagids;
 		int[] posA = now.cpostagids;
 		SpecialPos[] specialPos = now.specialPos;
 		int[] spanLeft = arcLis.left;
 		int[] spanRight = arcLis.right;
-
-		long code = 0;
-
-		for (int i = 0; i < len; ++i) {
-			// pp attachment
-			if (SpecialPos.P == specialPos[i]) {
-				int par = heads[i];
-				int[] c = synFactory.findPPArg(heads, specialPos, arcLis, i);
-				for (int z = 0; z < c.length; ++z) {
-					if (par != -1 && c[z] != -1) {
-						score += getPPScore(par, i, c[z]);
-					}
+		
+		// pp attachment
+		if (SpecialPos.P == specialPos[i]) {
+			int par = heads[i];
+			int[] c = synFactory.findPPArg(heads, specialPos, arcLis, i);
+			for (int z = 0; z < c.length; ++z) {
+				if (par != -1 && c[z] != -1) {
+					score += getPPScore(par, i, c[z]);
 				}
 			}
+		}
 
-			// conjunction pos
-			if (SpecialPos.C == specialPos[i]) {
-				int[] arg = synFactory.findConjArg(arcLis, heads, i);
-				int head = arg[0];
-				int left = arg[1];
-				int right = arg[2];
-				if (left != -1 && right != -1 && left < right) {
-					score += getCC1Score(left, i, right);
-					if (head != -1) {
-						score += getCC2Score(i, head, left);
-						score += getCC2Score(i, head, right);
-					}
+		// conjunction pos
+		if (SpecialPos.C == specialPos[i]) {
+			int[] arg = synFactory.findConjArg(arcLis, heads, i);
+			int head = arg[0];
+			int left = arg[1];
+			int right = arg[2];
+			if (left != -1 && right != -1 && left < right) {
+				score += getCC1Score(left, i, right);
+				if (head != -1) {
+					score += getCC2Score(i, head, left);
+					score += getCC2Score(i, head, right);
 				}
 			}
-
-			// punc head
-			if (SpecialPos.PNX == specialPos[i]) {
-				int j = synFactory.findPuncCounterpart(toks, i);
-				if (j != -1 && heads[i] == heads[j])
-					score += getPNXScore(heads[i], i, j);
-			}
 		}
 
-		int rb = synFactory.getMSTRightBranch(specialPos, arcLis, 0, 0);
+		// punc head
+		if (SpecialPos.PNX == specialPos[i]) {
+			int j = puncPair[i];
+			if (j != -1 && heads[i] == heads[j])
+				score += getPNXScore(heads[i], i, j);
+		}
 		
-		code = synFactory.createArcCodeP(Arc.RB, 0x0);
-		synFactory.addArcFeature(code, (double)rb / len, tmpFv);
-
-		for (int m = 1; m < len; ++m) {
-
-			// child num
-			int leftNum = 0;
-			int rightNum = 0;
-			int maxDigit = 64 - Arc.numArcFeatBits - synFactory.flagBits;
-			//int maxDigit = 64 - Arc.numArcFeatBits - 4;
-			int maxChildStrNum = (maxDigit / synFactory.tagNumBits) - 1;
-			int childStrNum = 0;
-			code = pos[m];
-			
-			int st = arcLis.startIndex(m);
-			int ed = arcLis.endIndex(m);
-			
-			for (int j = st; j < ed; ++j) {
-				int cid = arcLis.get(j);
-				if (SpecialPos.PNX != specialPos[cid]) {
-					if (cid < m && leftNum < MAX_CHILD_NUM)
-						leftNum++;
-					else if (cid > m && rightNum < MAX_CHILD_NUM)
-						rightNum++;
-					if (childStrNum < maxChildStrNum) {
-						code = ((code << synFactory.tagNumBits) | pos[cid]);
-						childStrNum++;
-					}
+		if (i == 0)
+			return score;
+		
+		int m = i;
+		
+		// child num
+		int leftNum = 0;
+		int rightNum = 0;
+		int maxDigit = 64 - Arc.numArcFeatBits - synFactory.flagBits;
+		//int maxDigit = 64 - Arc.numArcFeatBits - 4;
+		int maxChildStrNum = (maxDigit / synFactory.tagNumBits) - 1;
+		int childStrNum = 0;
+		long code = pos[m];
+		
+		int st = arcLis.startIndex(m);
+		int ed = arcLis.endIndex(m);
+		
+		for (int j = st; j < ed; ++j) {
+			int cid = arcLis.get(j);
+			if (SpecialPos.PNX != specialPos[cid]) {
+				if (cid < m && leftNum < MAX_CHILD_NUM)
+					leftNum++;
+				else if (cid > m && rightNum < MAX_CHILD_NUM)
+					rightNum++;
+				if (childStrNum < maxChildStrNum) {
+					code = ((code << synFactory.tagNumBits) | pos[cid]);
+					childStrNum++;
 				}
 			}
-			code = ((code << Arc.numArcFeatBits) | Arc.CN_STR.ordinal()) << synFactory.flagBits;
-			//code = ((code << Arc.numArcFeatBits) | Arc.CN_STR.ordinal()) << 4;
-			synFactory.addArcFeature(code, tmpFv);
+		}
+		code = ((code << Arc.numArcFeatBits) | Arc.CN_STR.ordinal()) << synFactory.flagBits;
+		//code = ((code << Arc.numArcFeatBits) | Arc.CN_STR.ordinal()) << 4;
+		FeatureVector tmpFv = new FeatureVector(lfd.size, 0, 1);
+		synFactory.addArcFeature(code, tmpFv);
+		score += lfd.parameters.dotProduct(tmpFv) * lfd.gamma;
 
-			score += getChildNumScore(m, leftNum, rightNum);
+		score += getChildNumScore(m, leftNum, rightNum);
 
-			// span
-			int end = spanRight[m] == len ? 1 : 0;
-			int punc = (spanRight[m] < len && SpecialPos.PNX == specialPos[spanRight[m]]) ? 1 : 0;
-			int bin = Math.min(MAX_SPAN_LENGTH, (spanRight[m] - spanLeft[m]));
-			score += getSpanScore(m, end, punc, bin);
+		// span
+		int end = spanRight[m] == len ? 1 : 0;
+		int punc = (spanRight[m] < len && SpecialPos.PNX == specialPos[spanRight[m]]) ? 1 : 0;
+		int bin = Math.min(MAX_SPAN_LENGTH, (spanRight[m] - spanLeft[m]));
+		score += getSpanScore(m, end, punc, bin);
 
-			if (heads[m] != -1) {
-				// neighbors
-				int leftID = spanLeft[m] > 0 ? posA[spanLeft[m] - 1] : synFactory.TOKEN_START;
-				int rightID = spanRight[m] < len ? posA[spanRight[m]] : synFactory.TOKEN_END;
-				if (leftID > 0 && rightID > 0) {
-					score += getNeighborScore(heads[m], m, leftID, rightID);
-				}
+		if (heads[m] != -1) {
+			// neighbors
+			int leftID = spanLeft[m] > 0 ? posA[spanLeft[m] - 1] : synFactory.TOKEN_START;
+			int rightID = spanRight[m] < len ? posA[spanRight[m]] : synFactory.TOKEN_END;
+			if (leftID > 0 && rightID > 0) {
+				score += getNeighborScore(heads[m], m, leftID, rightID);
 			}
 		}
 		
-		score += lfd.parameters.dotProduct(tmpFv) * lfd.gamma;
+		return score;
+	}
+	
+	public double getRightBranchScore(DependencyArcList arcLis) {
+		return getRightBranchScore(
+				synFactory.getMSTRightBranch(lfd.inst.specialPos, arcLis, 0, 0));
+	}
+	
+	/***
+	 * Score of the right branch factor for a right branch of num tokens.
+	 */
+	public double getRightBranchScore(int num) {
+		
+		int len = lfd.inst.length;
+		double score = rightBranch.getOrClaim(num);
+		if (score == NULL) {
+			try {
+				FeatureVector tmpFv = new FeatureVector(lfd.size, 0, 1);
+				long code = synFactory.createArcCodeP(Arc.RB, 0x0);
+				synFactory.addArcFeature(code, (double)num / len, tmpFv);
+				score = lfd.parameters.dotProduct(tmpFv) * lfd.gamma;
+				rightBranch.put(num, score);
+			} finally {
+				rightBranch.release(num);
+			}
+		}
 		return score;
 	}
 
@@ -0,0 +1,144 @@
+package parser;
+
+import parser.DependencyInstance.SpecialPos;
+
+/***
+ * Keeps the global (high-order) score of a tree under single head moves.
+ * The score of every token's global factors is cached with their running
+ * total, and moving the head of m only rescores the tokens whose factors can
+ * see the move: m, the old and new heads with their ancestors (child lists,
+ * spans and neighbors), the conjunctions whose arguments are found through
+ * m or the two heads, and the punctuation paired with m. The right branch
+ * is kept as a chain and only walked again when one of the heads is on it.
+ */
+public class IncrementalGlobalScorer {
+
+	GlobalFeatureData gfd;
+	int[] heads;
+	DependencyArcList arcLis;
+	SpecialPos[] specialPos;
+	boolean useHO;
+
+	int n;
+	double[] tokenScores;
+	double total;
+	int[] marks;
+	int stamp;
+
+	// punctuation tokens paired with each token, as linked lists
+	int[] firstPunc, nextPunc;
+
+	// tokens of the right branch, marked with rbStamp
+	int[] rbMarks;
+	int rbStamp, rbNum;
+	double rbScore;
+
+	public void init(GlobalFeatureData gfd, int[] heads, DependencyArcList arcLis)
+	{
+		this.gfd = gfd;
+		this.heads = heads;
+		this.arcLis = arcLis;
+		useHO = gfd.lfd.options.useHO;
+		if (!useHO) return;
+
+		n = heads.length;
+		if (tokenScores == null || tokenScores.length < n) {
+			tokenScores = new double[n];
+			marks = new int[n];
+			firstPunc = new int[n];
+			nextPunc = new int[n];
+			rbMarks = new int[n];
+		}
+
+		specialPos = gfd.lfd.inst.specialPos;
+		total = 0.0;
+		for (int i = 0; i < n; ++i)
+			firstPunc[i] = -1;
+		for (int i = 0; i < n; ++i) {
+			int j = gfd.puncPair[i];
+			if (j != -1) {
+				nextPunc[i] = firstPunc[j];
+				firstPunc[j] = i;
+			}
+			tokenScores[i] = gfd.getTokenScore(heads, arcLis, i);
+			total += tokenScores[i];
+		}
+		updateRightBranch();
+	}
+
+	/***
+	 * Rescores the factors affected by moving m from oldH to newH. Must be
+	 * called after heads and the arc list have been updated.
+	 */
+	public void update(int m, int oldH, int newH)
+	{
+		if (!useHO || oldH == newH) return;
+
+		++stamp;
+		rescore(m);
+		for (int h = oldH; h != -1; h = heads[h])
+			rescore(h);
+		for (int h = newH; h != -1; h = heads[h])
+			rescore(h);
+
+		// conjunctions find their arguments among their children, their
+		// parent's children and their first three ancestors
+		rescoreConjChildren(oldH, false);
+		rescoreConjChildren(newH, false);
+		rescoreConjChildren(m, true);
+
+		for (int i = firstPunc[m]; i != -1; i = nextPunc[i])
+			rescore(i);
+
+		if (rbMarks[oldH] == rbStamp || rbMarks[newH] == rbStamp)
+			updateRightBranch();
+	}
+
+	private void rescoreConjChildren(int h, boolean grandChildren)
+	{
+		for (int p = arcLis.startIndex(h), ed = arcLis.endIndex(h); p < ed; ++p) {
+			int c = arcLis.get(p);
+			if (SpecialPos.C == specialPos[c])
+				rescore(c);
+			if (grandChildren)
+				rescoreConjChildren(c, false);
+		}
+	}
+
+	private void rescore(int i)
+	{
+		if (marks[i] == stamp) return;
+		marks[i] = stamp;
+		double score = gfd.getTokenScore(heads, arcLis, i);
+		total += score - tokenScores[i];
+		tokenScores[i] = score;
+	}
+
+	/***
+	 * Walks the right branch from the root, following the last child that
+	 * is not punctuation, as SyntacticFeatureFactory.getMSTRightBranch().
+	 */
+	private void updateRightBranch()
+	{
+		++rbStamp;
+		rbNum = 0;
+		for (int i = 0; i != -1; ) {
+			rbMarks[i] = rbStamp;
+			++rbNum;
+			int next = -1;
+			for (int p = arcLis.endIndex(i) - 1, st = arcLis.startIndex(i); p >= st; --p)
+				if (SpecialPos.PNX != specialPos[arcLis.get(p)]) {
+					next = arcLis.get(p);
+					break;
+				}
+			i = next;
+		}
+		rbScore = gfd.getRightBranchScore(rbNum);
+	}
+
+	public double getScore()
+	{
+		if (!useHO) return 0.0;
+		return total + rbScore;
+	}
+}
@@ -4,7 +4,10 @@ import java.util.Arrays;
 
 import parser.Options.LearningMode;
 import parser.decoding.DependencyDecoder;
+import utils.DenseScoreTable;
 import utils.FeatureVector;
+import utils.ScoreTable;
+import utils.SparseScoreTable;
 import utils.Utils;
 
 public class LocalFeatureData {
@@ -18,8 +21,9 @@ public class LocalFeatureData {
 	
 	DependencyParser pruner;
 	DependencyDecoder prunerDecoder;
+	LocalFeatureData prunerData;	// reused for the pruner by reset()
 	
-	final int len;					// sentence length
+	int len;						// sentence length
 	final int ntypes;				// number of label types
 	final int size, sizeL;						
 	final int rank;								
@@ -59,36 +63,40 @@ public class LocalFeatureData {
 //	
 //	FeatureDataItem[] psc;			// parent-sib-mod-child, [dep id (p, sib)][dep id (mod, child)]
 	
-	double[] trips;			// [dep id][sib]
+	ScoreTable trips;			// [dep id][sib]
 	
-	double[] sib;			// [mod][sib]
+	ScoreTable sib;			// [mod][sib]
 	
-	double[] gpc;			// [dep id][child]
+	ScoreTable gpc;			// [dep id][child]
 
-	double[] headbi;		// [dep id][head2]
+	ScoreTable headbi;		// [dep id][head2]
 
-	double[] gpsib;			// grandparent-parent-child-sibling, gp-p is mapped to id [dep id][sib][mod]
+	ScoreTable gpsib;			// grandparent-parent-child-sibling, gp-p is mapped to id [dep id][sib][mod]
 
-	double[] trisib;		// parent-sibling-child-sibling [dep id][in sib][out sib]
+	ScoreTable trisib;		// parent-sibling-child-sibling [dep id][in sib][out sib]
 	
-	double[] ggpc;			// [dep id (ggp, gp)][dep id (p, mod)]
+	ScoreTable ggpc;			// [dep id (ggp, gp)][dep id (p, mod)]
 	
-	double[] psc;			// parent-sib-mod-child, [dep id (p, sib)][dep id (mod, child)]
+	ScoreTable psc;			// parent-sib-mod-child, [dep id (p, sib)][dep id (mod, child)]
 	
 	public LocalFeatureData(DependencyInstance inst,
 			DependencyParser parser, boolean indexGoldArcs) 
 	{
-		this.inst = inst;
+		this(inst, parser, indexGoldArcs, parser.parameters);
+	}
+	
+	public LocalFeatureData(DependencyInstance inst,
+			DependencyParser parser, boolean indexGoldArcs, Parameters parameters) 
+	{
 		pipe = parser.pipe;
 		options = parser.options;
-		parameters = parser.parameters;
+		this.parameters = parameters;
 		pruner = parser.pruner;
 		prunerDecoder = pruner == null ? null : 
 			DependencyDecoder.createDependencyDecoder(pruner.options);
 			
 		Utils.Assert(pruner == null || pruner.options.learningMode == LearningMode.Basic);
 		
-		len = inst.length;
 		ntypes = pipe.types.length;
 		rank = options.R;
 		size = pipe.synFactory.numArcFeats;
@@ -96,13 +104,33 @@ public class LocalFeatureData {
 		gamma = options.gamma;
 		gammaLabel = options.gammaLabel;
 		
-		wordFvs = new FeatureVector[len];
-		wpU = new double[len][rank];
-		wpV = new double[len][rank];
+		reset(inst, indexGoldArcs);
+	}
+	
+	/***
+	 * Computes the data of another sentence, reusing the arrays and score
+	 * tables of the previous one where they are large enough, so that a
+	 * pooled decoder does not allocate them for every sentence. Nothing may
+	 * use the data of the previous sentence any more.
+	 */
+	public void reset(DependencyInstance inst, boolean indexGoldArcs)
+	{
+		this.inst = inst;
+		len = inst.length;
 		
-		arcFvs = new FeatureVector[len*len];
-		arcScores = new double[len*len];
-	    //arcNtScores = new double[len*len];
+		if (wordFvs == null || wordFvs.length < len) {
+			wordFvs = new FeatureVector[len];
+			wpU = new double[len][rank];
+			wpV = new double[len][rank];
+			
+			arcFvs = new FeatureVector[len*len];
+			arcScores = new double[len*len];
+		    //arcNtScores = new double[len*len];
+		} else {
+			// pruned arcs keep no vector and a zero score
+			Arrays.fill(arcFvs, 0, len*len, null);
+			Arrays.fill(arcScores, 0, len*len, 0);
+		}
 
 		//lbFvs = new FeatureVector[len][ntypes][2][2];
 		//lbScores = new double[len][ntypes][2][2];
@@ -160,66 +188,87 @@ public class LocalFeatureData {
 		if (options.useCS) {
 			// 2nd order (head, mod, mod_sib) features
 			//trips = new FeatureDataItem[nuparcs*len];
-			trips = new double[numarcs*len];
-			Arrays.fill(trips, NULL);
+			trips = createDenseTable(trips, numarcs*len);
 			
 			// 2nd order (mod, mod_sib) features
 			//sib = new FeatureDataItem[len*len];
-			sib = new double[len*len];
-			Arrays.fill(sib, NULL);
+			sib = createDenseTable(sib, len*len);
 		}
 		
 		if (options.useGP) {
 			// 2nd order (head, mod, child) features
 			//gpc = new FeatureDataItem[nuparcs*len];
-			gpc = new double[numarcs*len];
-			Arrays.fill(gpc, NULL);
+			gpc = createDenseTable(gpc, numarcs*len);
 		}
 		
 		if (options.useHB) {
 			// 2nd order (head, mod, head2) features
 			//headbi = new FeatureDataItem[nuparcs*len];
-			headbi = new double[numarcs*len];
-			Arrays.fill(headbi, NULL);
+			headbi = createDenseTable(headbi, numarcs*len);
 		}
 		
 		if (options.useGS) {
 			// 3rd order (grand, head, sib, mod) features
 			//gpsib = new FeatureDataItem[nuparcs*len*len];
-			gpsib = new double[numarcs*len*len];
-			Arrays.fill(gpsib, NULL);
+			gpsib = createHighOrderTable(gpsib, (long)numarcs*len*len);
 		}
 		
 		if (options.useTS) {
 			// 3rd order (head, sib1, mod, sib2) features
 			//trisib = new FeatureDataItem[nuparcs*len*len];
-			trisib = new double[numarcs*len*len];
-			Arrays.fill(trisib, NULL);
+			trisib = createHighOrderTable(trisib, (long)numarcs*len*len);
 		}
 		
 		if (options.useGGP) {
 			// 3rd order (great-grand, grand, head, mod) features
 			//ggpc = new FeatureDataItem[nuparcs*nuparcs];
-			ggpc = new double[numarcs*numarcs];
-			Arrays.fill(ggpc, NULL);
+			ggpc = createHighOrderTable(ggpc, (long)numarcs*numarcs);
 		}
 
 		if (options.usePSC) {
 			// 3rd order (head, mod, sib, child) features
 			//psc = new FeatureDataItem[nuparcs*nuparcs];
-			psc = new double[numarcs*numarcs];
-			Arrays.fill(psc, NULL);
+			psc = createHighOrderTable(psc, (long)numarcs*numarcs);
 		}
 	}
 	
+	/***
+	 * Stops threads from waiting for scores claimed by other threads, once
+	 * the sentence is no longer decoded.
+	 */
+	public void abandonScoreTables() {
+		for (ScoreTable table : new ScoreTable[] { trips, sib, gpc, headbi, gpsib, trisib, ggpc, psc })
+			if (table != null) table.abandon();
+	}
+	
+	private ScoreTable createHighOrderTable(ScoreTable old, long size) {
+		// dense tables grow with len^4 without pruning; the sparse table
+		// only keeps the cells actually visited, up to a fixed capacity
+		if (options.sparseHOTables || size > Integer.MAX_VALUE)
+			return old instanceof SparseScoreTable && old.reset(size) ? old
+					: new SparseScoreTable(options.hoTableCapacity);
+		else
+			return createDenseTable(old, (int) size);
+	}
+	
+	/***
+	 * Returns old emptied for size keys if it can be kept, or a new table.
+	 */
+	static ScoreTable createDenseTable(ScoreTable old, int size) {
+		return old instanceof DenseScoreTable && old.reset(size) ? old
+				: new DenseScoreTable(size);
+	}
+	
 	public void initArcPruningMap(boolean includeGoldArcs) {
 		
-		arc2id = new int[len*len];
-		isPruned = new boolean[len*len];
-		edges = new int[len*len];
-		st = new int[len];
+		if (arc2id == null || arc2id.length < len*len) {
+			arc2id = new int[len*len];
+			isPruned = new boolean[len*len];
+			edges = new int[len*len];
+			st = new int[len];
+		}
 				
-		for (int i = 0, L = arc2id.length; i < L; ++i) {
+		for (int i = 0, L = len*len; i < L; ++i) {
 			arc2id[i] = -1;
 			isPruned[i] = true;
 		}
@@ -240,12 +289,14 @@ public class LocalFeatureData {
 			}
 			numedges = numarcs;
 		} else {	
-			if (includeGoldArcs) pruner.pruningTotGold += len-1;
-			pruner.pruningTotArcs += (len-1)*(len-1);
 			
 			// Use the threshold to prune arcs. 
 			double threshold = Math.log(options.pruningCoeff);
-			LocalFeatureData lfd2 = new LocalFeatureData(inst, pruner, false);
+			if (prunerData == null)
+				prunerData = new LocalFeatureData(inst, pruner, false);
+			else
+				prunerData.reset(inst, false);
+			LocalFeatureData lfd2 = prunerData;
 			GlobalFeatureData gfd2 = null;
 			DependencyInstance pred = prunerDecoder.decode(inst, lfd2, gfd2, false);
 							
@@ -274,11 +325,15 @@ public class LocalFeatureData {
 					}
 			}
 			
-			if (includeGoldArcs)
+			// sentences can be decoded in parallel, so update the stats at once;
+			// sentences without gold arcs leave the pruner untouched
+			if (includeGoldArcs) {
+				int goldHits = 0;
 				for (int m = 1; m < len; ++m)
 					if (!isPruned[m*len+inst.heads[m]])
-						pruner.pruningGoldHits++;
-			pruner.pruningTotUparcs += numarcs;
+						goldHits++;
+				pruner.addPruningStats(goldHits, len-1, numarcs, (len-1)*(len-1));
+			}
 		}
 	}
 	
@@ -326,19 +381,35 @@ public class LocalFeatureData {
 		Utils.Assert(id >= 0 && arc2id[s*len+h] >= 0);
 		
 		int pos = id*len+s;
-		if (trips[pos] == NULL)
-			getTripsFeatureVector(h, m, s);
+		double score = trips.getOrClaim(pos);
+		if (score == NULL) {
+			try {
+				FeatureVector fv = pipe.synFactory.createTripsFeatureVector(inst, h, m, s);
+				score = parameters.dotProduct(fv) * gamma;
+				trips.put(pos, score);
+			} finally {
+				trips.release(pos);
+			}
+		}
 		
-		return trips[pos];
+		return score;
 	}
 	
 	private final double getSibScore(int m, int s)
 	{
 		int pos = m*len+s;
-		if (sib[pos] == NULL)
-			getSibFeatureVector(m, s);
+		double score = sib.getOrClaim(pos);
+		if (score == NULL) {
+			try {
+				FeatureVector fv = pipe.synFactory.createSibFeatureVector(inst, m, s/*, false*/);
+				score = parameters.dotProduct(fv) * gamma;
+				sib.put(pos, score);
+			} finally {
+				sib.release(pos);
+			}
+		}
 		
-		return sib[pos];
+		return score;
 	}
 	
 	
@@ -348,10 +419,18 @@ public class LocalFeatureData {
 		Utils.Assert(id >= 0 && arc2id[m*len+h] >= 0);
 		
 		int pos = id*len+m;
-		if (gpc[pos] == NULL)
-			getGPCFeatureVector(gp, h, m);
+		double score = gpc.getOrClaim(pos);
+		if (score == NULL) {
+			try {
+				FeatureVector fv = pipe.synFactory.createGPCFeatureVector(inst, gp, h, m);
+				score = parameters.dotProduct(fv) * gamma;
+				gpc.put(pos, score);
+			} finally {
+				gpc.release(pos);
+			}
+		}
 		
-		return gpc[pos];
+		return score;
 	}
 	
 	private final double getHeadBiScore(int h, int m, int h2) {
@@ -361,10 +440,18 @@ public class LocalFeatureData {
 				&& arc2id[(m + 1)*len+h2] >= 0);
 		
 		int pos = id*len+h2;
-		if (headbi[pos] == NULL)
-			getHeadBiFeatureVector(h, m, h2);
+		double score = headbi.getOrClaim(pos);
+		if (score == NULL) {
+			try {
+				FeatureVector fv = pipe.synFactory.createHeadBiFeatureVector(inst, m, h, h2);
+				score = parameters.dotProduct(fv) * gamma;
+				headbi.put(pos, score);
+			} finally {
+				headbi.release(pos);
+			}
+		}
 
-		return headbi[pos];
+		return score;
 	}
 	
 	private final double getGPSibScore(int gp, int h, int m, int s) {
@@ -373,11 +460,21 @@ public class LocalFeatureData {
 		
 		Utils.Assert(id >= 0 && arc2id[m*len+h] >= 0 && arc2id[s*len+h] >= 0);
 		
-		int pos = (id*len+m)*len+s;
-		if (gpsib[pos] == NULL)
-			getGPSibFeatureVector(gp, h, m, s);
+		long pos = ((long)id*len+m)*len+s;
+		double score = gpsib.getOrClaim(pos);
+		if (score == NULL) {
+			try {
+				// computed here rather than by getGPSibFeatureVector() so that
+				// the score is right even if the table is full and drops it
+				FeatureVector fv = pipe.synFactory.createGPSibFeatureVector(inst, gp, h, m, s);
+				score = parameters.dotProduct(fv) * gamma;
+				gpsib.put(pos, score);
+			} finally {
+				gpsib.release(pos);
+			}
+		}
 		
-		return gpsib[pos];
+		return score;
 	}
 	
 	private final double getTriSibScore(int h, int s1, int m, int s2) {
@@ -386,11 +483,19 @@ public class LocalFeatureData {
 		
 		Utils.Assert(id >= 0 && arc2id[s1*len+h] >= 0 && arc2id[s2*len+h] >= 0);
 		
-		int pos = (id*len+s1)*len+s2;
-		if (trisib[pos] == NULL)
-			getTriSibFeatureVector(h, s1, m, s2);
+		long pos = ((long)id*len+s1)*len+s2;
+		double score = trisib.getOrClaim(pos);
+		if (score == NULL) {
+			try {
+				FeatureVector fv = pipe.synFactory.createTriSibFeatureVector(inst, h, s1, m, s2);
+				score = parameters.dotProduct(fv) * gamma;
+				trisib.put(pos, score);
+			} finally {
+				trisib.release(pos);
+			}
+		}
 		
-		return trisib[pos];
+		return score;
 	}
 	
 	private final double getGGPCScore(int ggp, int gp, int h, int m) {
@@ -399,11 +504,19 @@ public class LocalFeatureData {
 		
 		Utils.Assert(id1 >= 0 && id2 >= 0 && arc2id[h * len + gp] >= 0);
 		
-		int pos = id1 * numarcs + id2;
-		if (ggpc[pos] == NULL)
-			getGGPCFeatureVector(ggp, gp, h, m);
+		long pos = (long)id1 * numarcs + id2;
+		double score = ggpc.getOrClaim(pos);
+		if (score == NULL) {
+			try {
+				FeatureVector fv = pipe.synFactory.createGGPCFeatureVector(inst, ggp, gp, h, m);
+				score = parameters.dotProduct(fv) * gamma;
+				ggpc.put(pos, score);
+			} finally {
+				ggpc.release(pos);
+			}
+		}
 
-		return ggpc[pos];
+		return score;
 	}
 	
 	private final double getPSCScore(int h, int m, int c, int sib) {
@@ -412,11 +525,19 @@ public class LocalFeatureData {
 		
 		Utils.Assert(id1 >= 0 && id2 >= 0 && arc2id[m * len + h] >= 0);
 		
-		int pos = id1 * numarcs + id2;
-		if (psc[pos] == NULL)
-			getPSCFeatureVector(h, m, c, sib);
+		long pos = (long)id1 * numarcs + id2;
+		double score = psc.getOrClaim(pos);
+		if (score == NULL) {
+			try {
+				FeatureVector fv = pipe.synFactory.createPSCFeatureVector(inst, h, m, c, sib);
+				score = parameters.dotProduct(fv) * gamma;
+				psc.put(pos, score);
+			} finally {
+				psc.release(pos);
+			}
+		}
 
-		return psc[pos];
+		return score;
 	}
 	
 	public double getPartialScore2(int[] heads, int x, DependencyArcList arcLis)
@@ -875,7 +996,7 @@ public class LocalFeatureData {
 		
 		int pos = id*len+s;
 		FeatureVector fv = pipe.synFactory.createTripsFeatureVector(inst, h, m, s);
-		trips[pos] = parameters.dotProduct(fv) * gamma;			
+		trips.put(pos, parameters.dotProduct(fv) * gamma);			
 		return fv;
 	}
 	
@@ -883,7 +1004,7 @@ public class LocalFeatureData {
 	{
 		int pos = m*len+s;				
 		FeatureVector fv = pipe.synFactory.createSibFeatureVector(inst, m, s/*, false*/);
-		sib[pos] = parameters.dotProduct(fv) * gamma;
+		sib.put(pos, parameters.dotProduct(fv) * gamma);
 		return fv;
 	}
 	
@@ -894,7 +1015,7 @@ public class LocalFeatureData {
 		
 		int pos = id*len+m;
 		FeatureVector fv = pipe.synFactory.createGPCFeatureVector(inst, gp, h, m);
-		gpc[pos] = parameters.dotProduct(fv) * gamma;
+		gpc.put(pos, parameters.dotProduct(fv) * gamma);
 		return fv;
 	}
 	
@@ -907,7 +1028,7 @@ public class LocalFeatureData {
 		int pos = id*len+h2;
 
 		FeatureVector fv = pipe.synFactory.createHeadBiFeatureVector(inst, m, h, h2);
-		headbi[pos] = parameters.dotProduct(fv) * gamma;
+		headbi.put(pos, parameters.dotProduct(fv) * gamma);
 		return fv;
 	}
 	
@@ -917,9 +1038,9 @@ public class LocalFeatureData {
 		
 		Utils.Assert(id >= 0 && arc2id[m*len+h] >= 0 && arc2id[s*len+h] >= 0);
 		
-		int pos = (id*len+m)*len+s;
+		long pos = ((long)id*len+m)*len+s;
 		FeatureVector fv = pipe.synFactory.createGPSibFeatureVector(inst, gp, h, m, s);
-		gpsib[pos] = parameters.dotProduct(fv) * gamma;
+		gpsib.put(pos, parameters.dotProduct(fv) * gamma);
 		return fv;
 	}
 	
@@ -929,9 +1050,9 @@ public class LocalFeatureData {
 		
 		Utils.Assert(id >= 0 && arc2id[s1*len+h] >= 0 && arc2id[s2*len+h] >= 0);
 		
-		int pos = (id*len+s1)*len+s2;
+		long pos = ((long)id*len+s1)*len+s2;
 		FeatureVector fv = pipe.synFactory.createTriSibFeatureVector(inst, h, s1, m, s2);
-		trisib[pos] = parameters.dotProduct(fv) * gamma;
+		trisib.put(pos, parameters.dotProduct(fv) * gamma);
 		return fv;
 	}
 	
@@ -941,9 +1062,9 @@ public class LocalFeatureData {
 		
 		Utils.Assert(id1 >= 0 && id2 >= 0 && arc2id[h * len + gp] >= 0);
 		
-		int pos = id1 * numarcs + id2;
+		long pos = (long)id1 * numarcs + id2;
 		FeatureVector fv = pipe.synFactory.createGGPCFeatureVector(inst, ggp, gp, h, m);
-		ggpc[pos] = parameters.dotProduct(fv) * gamma;
+		ggpc.put(pos, parameters.dotProduct(fv) * gamma);
 		return fv;
 	}
 	
@@ -953,9 +1074,9 @@ public class LocalFeatureData {
 		
 		Utils.Assert(id1 >= 0 && id2 >= 0 && arc2id[m * len + h] >= 0);
 		
-		int pos = id1 * numarcs + id2;
+		long pos = (long)id1 * numarcs + id2;
 		FeatureVector fv = pipe.synFactory.createPSCFeatureVector(inst, h, m, c, sib);
-		psc[pos] = parameters.dotProduct(fv) * gamma;
+		psc.put(pos, parameters.dotProduct(fv) * gamma);
 		return fv;
 	}
 
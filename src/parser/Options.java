@@ -1,6 +1,11 @@
 package parser;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.io.Serializable;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
 
 
 public class Options implements Cloneable, Serializable {
@@ -41,6 +46,36 @@ public class Options implements Cloneable, Serializable {
 	public int labelLossType = 0;
 	
 	public int numHcThreads = 4;		// hill climbing: number of threads
+	public int numTestThreads = 1;		// number of sentences decoded in parallel at test time
+	public int numTrainThreads = 1;		// number of sentences trained on in parallel (Hogwild)
+	public int numReadThreads = 1;		// threads parsing the lines of corpus files, mapped if more than 1
+	public int numMixShards = 1;		// parameter mixing: number of shards trained in parallel
+	public boolean mixByErrors = false;	// parameter mixing: weight shards by their number of errors
+	public int mixPort = 0;				// multi-process mixing: port the coordinator listens on
+	public String mixCoordinator = null;	// multi-process mixing: host:port a worker connects to
+	public int numMixWorkers = 1;		// multi-process mixing: number of workers of the coordinator
+	public int mixPeriod = 0;			// sentences per worker between mixes, 0 for once per epoch
+	
+	public boolean floatWeights = false;	// store the trained weights in single precision
+	public boolean quantizedWeights = false;	// store the trained weights as int8 with block scales
+	// exporting applies to the current run only and is not saved with the model
+	public transient String exportFile = null;	// where to write a copy of the model with sparse weights
+	public transient double exportThreshold = 0;	// weights of at most this magnitude are not exported
+	public transient boolean mappedExport = false;	// export a mapped model (see saveMappedModel)
+	public transient String corpusCacheDir = null;	// directory of binary caches of training corpora
+	public transient boolean stream = false;	// parse sentences from stdin to stdout
+	public transient int streamWindow = 0;	// sentences read but not written yet when streaming, 0 for 4 per thread
+	public transient int serverPort = 0;	// serve parse requests on this local port, see ParsingServer
+	
+	// hashed space of arc and labeled arc features, saved with the model
+	public final static int DEFAULT_FEATURE_SPACE = 115911564;
+	public int numHashedFeats = DEFAULT_FEATURE_SPACE;	// masked instead of modulo if a power of two
+	public boolean mixFeatureHash = false;	// hash with a 64-bit mixer instead of fold-and-multiply
+	
+	// 3rd order score tables: dense arrays or capped sparse hash tables
+	public final static int DEFAULT_HO_TABLE_CAPACITY = 1 << 20;
+	public boolean sparseHOTables = false;
+	public int hoTableCapacity = DEFAULT_HO_TABLE_CAPACITY;	// max entries per table and sentence
 	
 	// Number of hill climbing restarts to converge
 	// Training requires more restarts because of cost-augmented decoding
@@ -99,6 +134,73 @@ public class Options implements Cloneable, Serializable {
 		return super.clone();
 	}
 	
+    /**
+     * Writes the saved options to a model file section as (name, value) pairs.
+     * Options are matched by name when read, so models keep loading when
+     * options are added or removed.
+     */
+    public void write(DataOutputStream out) throws IOException
+    {
+    	try {
+    		int n = 0;
+    		for (Field f : Options.class.getDeclaredFields())
+    			if (isSaved(f)) ++n;
+    		out.writeInt(n);
+    		for (Field f : Options.class.getDeclaredFields())
+    			if (isSaved(f)) {
+    				Object value = f.get(this);
+    				out.writeUTF(f.getName());
+    				out.writeBoolean(value != null);
+    				if (value != null) out.writeUTF(value.toString());
+    			}
+    	} catch (IllegalAccessException e) {
+    		throw new RuntimeException(e);
+    	}
+    }
+    
+    /**
+     * Reads options written by write(). Options the model does not have keep
+     * their defaults and options this version does not know are ignored.
+     */
+    public void read(DataInputStream in) throws IOException
+    {
+    	for (int i = 0, n = in.readInt(); i < n; ++i) {
+    		String name = in.readUTF();
+    		String value = in.readBoolean() ? in.readUTF() : null;
+    		try {
+    			Field f = Options.class.getDeclaredField(name);
+    			if (isSaved(f)) setField(f, value);
+    		} catch (NoSuchFieldException e) {
+    		} catch (IllegalAccessException e) {
+    			throw new RuntimeException(e);
+    		}
+    	}
+    }
+    
+    private static boolean isSaved(Field f)
+    {
+    	int mod = f.getModifiers();
+    	return !Modifier.isStatic(mod) && !Modifier.isTransient(mod);
+    }
+    
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+	private void setField(Field f, String value) throws IllegalAccessException
+    {
+    	Class<?> type = f.getType();
+    	if (type == int.class)
+    		f.setInt(this, Integer.parseInt(value));
+    	else if (type == double.class)
+    		f.setDouble(this, Double.parseDouble(value));
+    	else if (type == boolean.class)
+    		f.setBoolean(this, Boolean.parseBoolean(value));
+    	else if (type == String.class)
+    		f.set(this, value);
+    	else if (type.isEnum())
+    		f.set(this, value == null ? null : Enum.valueOf((Class<Enum>) type, value));
+    	else
+    		throw new RuntimeException("Unsupported option type " + type);
+    }
+    
     public void processArguments(String[] args) {
     	
     	for (String arg : args) {
@@ -112,6 +214,15 @@ public class Options implements Cloneable, Serializable {
     			test = true;
     			dev = true;
     		}
+    		else if (arg.equals("stream")) {
+    			stream = true;
+    		}
+    		else if (arg.startsWith("stream-window:")) {
+    			streamWindow = Integer.parseInt(arg.split(":")[1]);
+    		}
+    		else if (arg.startsWith("server:")) {
+    			serverPort = Integer.parseInt(arg.split(":")[1]);
+    		}
     		else if (arg.startsWith("label")) {
     			learnLabel = Boolean.parseBoolean(arg.split(":")[1]);
     		}
@@ -170,6 +281,61 @@ public class Options implements Cloneable, Serializable {
             else if (arg.startsWith("thread:")) {
             	numHcThreads = Integer.parseInt(arg.split(":")[1]);
             }
+            else if (arg.startsWith("test-thread:")) {
+            	numTestThreads = Integer.parseInt(arg.split(":")[1]);
+            }
+            else if (arg.startsWith("train-thread:")) {
+            	numTrainThreads = Integer.parseInt(arg.split(":")[1]);
+            }
+            else if (arg.startsWith("read-thread:")) {
+            	numReadThreads = Integer.parseInt(arg.split(":")[1]);
+            }
+            else if (arg.startsWith("mix-shards:")) {
+            	numMixShards = Integer.parseInt(arg.split(":")[1]);
+            }
+            else if (arg.startsWith("mix-weight:")) {
+            	mixByErrors = arg.split(":")[1].equals("errors");
+            }
+            else if (arg.startsWith("mix-coordinator:")) {
+            	mixPort = Integer.parseInt(arg.split(":")[1]);
+            }
+            else if (arg.startsWith("mix-connect:")) {
+            	mixCoordinator = arg.substring("mix-connect:".length());
+            }
+            else if (arg.startsWith("mix-workers:")) {
+            	numMixWorkers = Integer.parseInt(arg.split(":")[1]);
+            }
+            else if (arg.startsWith("mix-period:")) {
+            	mixPeriod = Integer.parseInt(arg.split(":")[1]);
+            }
+            else if (arg.startsWith("export-model:")) {
+            	exportFile = arg.split(":")[1];
+            }
+            else if (arg.startsWith("corpus-cache:")) {
+            	corpusCacheDir = arg.split(":")[1];
+            }
+            else if (arg.startsWith("export-format:")) {
+            	mappedExport = arg.split(":")[1].equals("mapped");
+            }
+            else if (arg.startsWith("export-threshold:")) {
+            	exportThreshold = Double.parseDouble(arg.split(":")[1]);
+            }
+            else if (arg.startsWith("weights:")) {
+            	floatWeights = arg.split(":")[1].equals("float");
+            	quantizedWeights = arg.split(":")[1].equals("int8");
+            }
+            else if (arg.startsWith("feature-space:")) {
+            	numHashedFeats = Integer.parseInt(arg.split(":")[1]);
+            }
+            else if (arg.startsWith("feature-hash:")) {
+            	mixFeatureHash = arg.split(":")[1].equals("mix");
+            }
+            else if (arg.startsWith("ho-table:")) {
+            	sparseHOTables = arg.split(":")[1].equals("sparse");
+            }
+            else if (arg.startsWith("ho-table-cap:")) {
+            	hoTableCapacity = Integer.parseInt(arg.split(":")[1]);
+            }
             else if (arg.startsWith("converge:")) {
             	numTrainConverge = Integer.parseInt(arg.split(":")[1]);
             	numTestConverge = numTrainConverge;
@@ -193,6 +359,12 @@ public class Options implements Cloneable, Serializable {
             	format = arg.split(":")[1];
             }
     	}    	
+    	
+    	// not set in models saved before the option existed
+    	if (hoTableCapacity <= 0)
+    		hoTableCapacity = DEFAULT_HO_TABLE_CAPACITY;
+    	if (numHashedFeats <= 0)
+    		numHashedFeats = DEFAULT_FEATURE_SPACE;
         
         //gammaLabel = 1.0;
 
@@ -218,7 +390,9 @@ public class Options implements Cloneable, Serializable {
     			break;
     	}
     	
-    	lang = findLang(trainFile != null ? trainFile : testFile);
+    	// without a file, as when streaming, the language is the one of the model
+    	if (trainFile != null || testFile != null)
+    		lang = findLang(trainFile != null ? trainFile : testFile);
     }
     
     public void printOptions() {
@@ -242,6 +416,31 @@ public class Options implements Cloneable, Serializable {
         System.out.println("hill-climbing converge (train): " + numTrainConverge);
         System.out.println("hill-climbing converge (test): " + numTestConverge);
         System.out.println("thread: " + numHcThreads);
+        System.out.println("test thread: " + numTestThreads);
+        System.out.println("train thread: " + numTrainThreads);
+        System.out.println("read thread: " + numReadThreads);
+        System.out.println("mixing shards: " + numMixShards
+        		+ (mixByErrors ? " (weighted by errors)" : " (uniform)"));
+        if (mixPort > 0)
+        	System.out.println("mixing coordinator: port " + mixPort + ", "
+        			+ numMixWorkers + " workers, period " + mixPeriod);
+        if (mixCoordinator != null)
+        	System.out.println("mixing worker: " + mixCoordinator);
+        System.out.println("weights: " + (quantizedWeights ? "int8" : floatWeights ? "float" : "double"));
+        if (exportFile != null)
+        	System.out.println("export model: " + exportFile + " (" 
+        			+ (mappedExport ? "mapped" : "sparse, threshold " + exportThreshold) + ")");
+        if (stream)
+        	System.out.println("stream window: " + streamWindow);
+        if (serverPort > 0)
+        	System.out.println("server port: " + serverPort);
+        if (corpusCacheDir != null)
+        	System.out.println("corpus cache: " + corpusCacheDir);
+        System.out.println("feature space: " + numHashedFeats
+        		+ (Integer.bitCount(numHashedFeats) == 1 ? " (masked" : " (modulo")
+        		+ (mixFeatureHash ? ", mixed hash)" : ", folded hash)"));
+        System.out.println("high-order tables: " + (sparseHOTables ? "sparse" : "dense")
+        		+ " (cap " + hoTableCapacity + ")");
         System.out.println("file format: " + format);
         
         System.out.println();
@@ -1,8 +1,23 @@
 package parser;
 
+import gnu.trove.iterator.TIntDoubleIterator;
+import gnu.trove.map.hash.TIntDoubleHashMap;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.util.BitSet;
 
 import utils.FeatureVector;
+import utils.ModelFileReader;
+import utils.ModelFileWriter;
+import utils.QuantizedVector;
 import utils.Utils;
 
 public class Parameters implements Serializable {
@@ -23,11 +38,34 @@ public class Parameters implements Serializable {
 	
 	public double[] params, paramsL;
 	public double[][] U, V, W;
-	public transient double[] backup, total, backupL, totalL;
+	// the accumulators of theta are sparse since most hashed features never
+	// occur, and averaging keeps only the original values it overwrites
+	public transient TIntDoubleHashMap total, totalL, backup, backupL;
 	public transient double[][] totalU, totalV, totalW;
 	public transient double[][] backupU, backupV, backupW;
 	
-	public transient FeatureVector[] dU, dV, dW;
+	// single precision weights used for scoring once the parameters are
+	// compacted, in which case the double arrays are null
+	public float[] paramsF, paramsLF;
+	public float[][] UF, VF, WF;
+	
+	// int8 weights with per-block scales, used for scoring once the
+	// parameters are quantized, in which case the other arrays are null
+	public QuantizedVector paramsQ, paramsLQ;
+	public QuantizedVector[] UQ, VQ, WQ;
+	
+	// whether write() writes theta and the label weights as sparse arrays,
+	// without their weights of at most exportThreshold in magnitude
+	transient boolean sparseExport;
+	transient double exportThreshold;
+	
+	// theta and the label weights of mapped models, read in place from the
+	// model file, in which case the arrays are null
+	boolean mapped;
+	transient FloatBuffer paramsM, paramsLM;
+	
+	// indices changed since the last mix, only kept by shard copies
+	transient BitSet touched, touchedL, touchedU, touchedV;
 	
 	public Parameters(DependencyPipe pipe, Options options) 
 	{
@@ -35,12 +73,12 @@ public class Parameters implements Serializable {
         D = d * 2 + 1;
 		size = pipe.synFactory.numArcFeats;		
 		params = new double[size];
-		total = new double[size];
+		total = new TIntDoubleHashMap();
 		
 		if (options.learnLabel) {
 			sizeL = pipe.synFactory.numLabeledArcFeats;
 			paramsL = new double[sizeL];
-			totalL = new double[sizeL];
+			totalL = new TIntDoubleHashMap();
 		}
 		
 		this.options = options;
@@ -58,12 +96,332 @@ public class Parameters implements Serializable {
 		totalU = new double[rank][N];
 		totalV = new double[rank][M];
 		totalW = new double[rank][D];
-		dU = new FeatureVector[rank];
-		dV = new FeatureVector[rank];
-		dW = new FeatureVector[rank];
 
 	}
 	
+	/***
+	 * Copy of the weights and averaging accumulators used as one shard in
+	 * parameter mixing.
+	 */
+	public Parameters(Parameters p)
+	{
+		options = p.options;
+		labelLossType = p.labelLossType;
+		C = p.C;
+		gamma = p.gamma;
+		gammaLabel = p.gammaLabel;
+		size = p.size;
+		sizeL = p.sizeL;
+		rank = p.rank;
+		N = p.N;
+		M = p.M;
+		T = p.T;
+		D = p.D;
+		
+		params = p.params.clone();
+		total = new TIntDoubleHashMap(p.total);
+		if (p.paramsL != null) {
+			paramsL = p.paramsL.clone();
+			totalL = new TIntDoubleHashMap(p.totalL);
+		}
+		U = Utils.clone(p.U);
+		V = Utils.clone(p.V);
+		W = Utils.clone(p.W);
+		totalU = Utils.clone(p.totalU);
+		totalV = Utils.clone(p.totalV);
+		totalW = Utils.clone(p.totalW);
+	}
+	
+	/***
+	 * Reads parameters written by write() under the given name, with the
+	 * chunks of theta and the label weights inflated by numThreads threads.
+	 */
+	public Parameters(ModelFileReader in, String name, Options options, int numThreads)
+			throws IOException
+	{
+		DataInputStream data = in.section(name);
+		this.options = options;
+		labelLossType = data.readInt();
+		C = data.readDouble();
+		gamma = data.readDouble();
+		gammaLabel = data.readDouble();
+		size = data.readInt();
+		sizeL = data.readInt();
+		rank = data.readInt();
+		N = data.readInt();
+		M = data.readInt();
+		T = data.readInt();
+		D = data.readInt();
+		
+		// the tensor may not have the type of theta, e.g. in mapped models
+		int tensorType = data.readByte();
+		if (tensorType == ModelFileWriter.INT8) {
+			UQ = readQuantizedRows(data, rank);
+			VQ = readQuantizedRows(data, rank);
+			WQ = readQuantizedRows(data, rank);
+		} else if (tensorType == ModelFileWriter.FLOATS) {
+			UF = readFloatRows(data, rank);
+			VF = readFloatRows(data, rank);
+			WF = readFloatRows(data, rank);
+		} else {
+			U = readDoubleRows(data, rank);
+			V = readDoubleRows(data, rank);
+			W = readDoubleRows(data, rank);
+		}
+		
+		String theta = name + ".theta", thetaL = name + ".thetaL";
+		int type = in.arrayType(theta);
+		if (type == ModelFileWriter.INT8) paramsQ = in.readQuantized(theta, numThreads);
+		else if (type == ModelFileWriter.FLOATS) paramsF = in.readFloats(theta, numThreads);
+		else params = in.readDoubles(theta, numThreads);
+		if (in.hasSection(thetaL)) {
+			if (type == ModelFileWriter.INT8) paramsLQ = in.readQuantized(thetaL, numThreads);
+			else if (type == ModelFileWriter.FLOATS) paramsLF = in.readFloats(thetaL, numThreads);
+			else paramsL = in.readDoubles(thetaL, numThreads);
+		}
+	}
+	
+	/***
+	 * Adds the parameters to a model file: the scalars and the tensor in the
+	 * section name, theta and the label weights as chunked arrays in the
+	 * sections name.theta and name.thetaL, which are sparse arrays when
+	 * exporting. The weights are read when the file is written.
+	 */
+	public void write(ModelFileWriter out, String name) throws IOException
+	{
+		unmapWeights();
+		DataOutputStream data = out.section(name);
+		data.writeInt(labelLossType);
+		data.writeDouble(C);
+		data.writeDouble(gamma);
+		data.writeDouble(gammaLabel);
+		data.writeInt(size);
+		data.writeInt(sizeL);
+		data.writeInt(rank);
+		data.writeInt(N);
+		data.writeInt(M);
+		data.writeInt(T);
+		data.writeInt(D);
+		
+		if (UQ != null) {
+			data.writeByte(ModelFileWriter.INT8);
+			for (QuantizedVector[] rows : new QuantizedVector[][] { UQ, VQ, WQ })
+				for (int i = 0; i < rank; ++i) rows[i].write(data);
+		} else if (UF != null) {
+			data.writeByte(ModelFileWriter.FLOATS);
+			for (float[][] rows : new float[][][] { UF, VF, WF })
+				for (int i = 0; i < rank; ++i) ModelFileWriter.writeFloats(data, rows[i]);
+		} else {
+			data.writeByte(ModelFileWriter.DOUBLES);
+			for (double[][] rows : new double[][][] { U, V, W })
+				for (int i = 0; i < rank; ++i) ModelFileWriter.writeDoubles(data, rows[i]);
+		}
+		
+		String theta = name + ".theta", thetaL = name + ".thetaL";
+		if (sparseExport) {
+			double t = exportThreshold;
+			if (paramsQ != null) out.writeSparseArray(theta, paramsQ, t);
+			else if (paramsF != null) out.writeSparseArray(theta, paramsF, t);
+			else out.writeSparseArray(theta, params, t);
+			if (paramsLQ != null) out.writeSparseArray(thetaL, paramsLQ, t);
+			else if (paramsLF != null) out.writeSparseArray(thetaL, paramsLF, t);
+			else if (paramsL != null) out.writeSparseArray(thetaL, paramsL, t);
+		} else {
+			if (paramsQ != null) out.writeArray(theta, paramsQ);
+			else if (paramsF != null) out.writeArray(theta, paramsF);
+			else out.writeArray(theta, params);
+			if (paramsLQ != null) out.writeArray(thetaL, paramsLQ);
+			else if (paramsLF != null) out.writeArray(thetaL, paramsLF);
+			else if (paramsL != null) out.writeArray(thetaL, paramsL);
+		}
+	}
+	
+	private static QuantizedVector[] readQuantizedRows(DataInputStream in, int n) throws IOException
+	{
+		QuantizedVector[] a = new QuantizedVector[n];
+		for (int i = 0; i < n; ++i)
+			a[i] = new QuantizedVector(in);
+		return a;
+	}
+	
+	private static double[][] readDoubleRows(DataInputStream in, int n) throws IOException
+	{
+		double[][] a = new double[n][];
+		for (int i = 0; i < n; ++i)
+			a[i] = ModelFileReader.readDoubles(in);
+		return a;
+	}
+	
+	private static float[][] readFloatRows(DataInputStream in, int n) throws IOException
+	{
+		float[][] a = new float[n][];
+		for (int i = 0; i < n; ++i)
+			a[i] = ModelFileReader.readFloats(in);
+		return a;
+	}
+	
+	public void trackUpdates()
+	{
+		touched = new BitSet(size);
+		touchedL = new BitSet(sizeL);
+		touchedU = new BitSet(N);
+		touchedV = new BitSet(M);
+	}
+	
+	public void stopTrackingUpdates()
+	{
+		touched = null;
+		touchedL = null;
+		touchedU = null;
+		touchedV = null;
+	}
+	
+	public void clearUpdates()
+	{
+		touched.clear();
+		touchedL.clear();
+		touchedU.clear();
+		touchedV.clear();
+	}
+	
+	/***
+	 * Number of weight blocks merged when mixing: theta, the label weights if
+	 * any, then U, V and W for every rank.
+	 */
+	public int numBlocks()
+	{
+		return (paramsL != null ? 2 : 1) + 3 * rank;
+	}
+	
+	public double[] blockValues(int b)
+	{
+		if (b == 0) return params;
+		if (paramsL != null && --b == 0) return paramsL;
+		--b;
+		switch (b % 3) {
+			case 0: return U[b / 3];
+			case 1: return V[b / 3];
+			default: return W[b / 3];
+		}
+	}
+	
+	public double getTotal(int b, int x)
+	{
+		if (b == 0) return total.get(x);
+		if (paramsL != null && b == 1) return totalL.get(x);
+		return denseTotals(b)[x];
+	}
+	
+	public void setTotal(int b, int x, double value)
+	{
+		if (b == 0) total.put(x, value);
+		else if (paramsL != null && b == 1) totalL.put(x, value);
+		else denseTotals(b)[x] = value;
+	}
+	
+	private double[] denseTotals(int b)
+	{
+		b -= paramsL != null ? 2 : 1;
+		switch (b % 3) {
+			case 0: return totalU[b / 3];
+			case 1: return totalV[b / 3];
+			default: return totalW[b / 3];
+		}
+	}
+	
+	/***
+	 * Indices of block b with a non-zero weight or accumulator.
+	 */
+	public BitSet blockSupport(int b)
+	{
+		double[] values = blockValues(b);
+		BitSet support = new BitSet(values.length);
+		for (int x = 0; x < values.length; ++x)
+			if (values[x] != 0) support.set(x);
+		if (b == 0 || paramsL != null && b == 1) {
+			for (int x : (b == 0 ? total : totalL).keys())
+				support.set(x);
+		} else {
+			double[] totals = denseTotals(b);
+			for (int x = 0; x < totals.length; ++x)
+				if (totals[x] != 0) support.set(x);
+		}
+		return support;
+	}
+	
+	public void clearBlock(int b)
+	{
+		double[] values = blockValues(b);
+		for (int x = 0; x < values.length; ++x)
+			values[x] = 0;
+		if (b == 0) total.clear();
+		else if (paramsL != null && b == 1) totalL.clear();
+		else {
+			double[] totals = denseTotals(b);
+			for (int x = 0; x < totals.length; ++x)
+				totals[x] = 0;
+		}
+	}
+	
+	/***
+	 * Indices of block b updated since the last mix. W is updated densely, so
+	 * all of its indices are returned.
+	 */
+	public BitSet blockUpdates(int b)
+	{
+		if (b == 0) return touched;
+		if (paramsL != null && --b == 0) return touchedL;
+		--b;
+		switch (b % 3) {
+			case 0: return touchedU;
+			case 1: return touchedV;
+			default:
+				BitSet all = new BitSet(D);
+				all.set(0, D);
+				return all;
+		}
+	}
+	
+	/***
+	 * Replaces the weights and accumulators of every shard by their weighted
+	 * average. Shards start from the same values, so only the indices some
+	 * shard has updated since the last mix need to be merged.
+	 */
+	public static void mix(Parameters[] shards, double[] weights)
+	{
+		double[][] vals = new double[shards.length][];
+		
+		for (int b = 0, B = shards[0].numBlocks(); b < B; ++b) {
+			BitSet indices = new BitSet();
+			for (int i = 0; i < shards.length; ++i) {
+				vals[i] = shards[i].blockValues(b);
+				indices.or(shards[i].blockUpdates(b));
+			}
+			mix(vals, weights, indices);
+			for (int x = indices.nextSetBit(0); x >= 0; x = indices.nextSetBit(x+1)) {
+				double sum = 0;
+				for (int i = 0; i < shards.length; ++i)
+					sum += weights[i] * shards[i].getTotal(b, x);
+				for (int i = 0; i < shards.length; ++i)
+					shards[i].setTotal(b, x, sum);
+			}
+		}
+		
+		for (Parameters p : shards)
+			p.clearUpdates();
+	}
+	
+	private static void mix(double[][] arrays, double[] weights, BitSet indices)
+	{
+		for (int x = indices.nextSetBit(0); x >= 0; x = indices.nextSetBit(x+1)) {
+			double sum = 0;
+			for (int i = 0; i < arrays.length; ++i)
+				sum += weights[i] * arrays[i][x];
+			for (int i = 0; i < arrays.length; ++i)
+				arrays[i][x] = sum;
+		}
+	}
+	
 	public void randomlyInitUVW() 
 	{
 		for (int i = 0; i < rank; ++i) {
@@ -78,19 +436,11 @@ public class Parameters implements Serializable {
 	
 	public void averageParameters(int T) 
 	{
-		backup = params;
-		double[] avgParams = new double[size];
-		for (int i = 0; i < size; ++i) {
-			avgParams[i] = (params[i] * (T+1) - total[i])/T;			
-		}		
-		params = avgParams;
-		
-		backupL = paramsL;
-		double[] avgParamsL = new double[sizeL];
-		for (int i = 0; i < sizeL; ++i) {
-			avgParamsL[i] = (paramsL[i] * (T+1) - totalL[i])/T;			
-		}		
-		paramsL = avgParamsL;
+		// theta is averaged in place: weights without an accumulator entry
+		// have never been updated and stay zero
+		backup = average(params, total, T);
+		if (paramsL != null)
+			backupL = average(paramsL, totalL, T);
 		
 		backupU = U;
 		double[][] avgU = new double[rank][N];
@@ -117,15 +467,203 @@ public class Parameters implements Serializable {
 		W = avgW;
 	}
 	
+	private static TIntDoubleHashMap average(double[] a, TIntDoubleHashMap total, int T)
+	{
+		TIntDoubleHashMap backup = new TIntDoubleHashMap(total.size());
+		for (TIntDoubleIterator it = total.iterator(); it.hasNext(); ) {
+			it.advance();
+			int x = it.key();
+			backup.put(x, a[x]);
+			a[x] = (a[x] * (T+1) - it.value())/T;
+		}
+		return backup;
+	}
+	
+	private static void restore(double[] a, TIntDoubleHashMap backup)
+	{
+		for (TIntDoubleIterator it = backup.iterator(); it.hasNext(); ) {
+			it.advance();
+			a[it.key()] = it.value();
+		}
+	}
+	
 	public void unaverageParameters() 
 	{
-		params = backup;
-		paramsL = backupL;
+		restore(params, backup);
+		backup = null;
+		if (paramsL != null) {
+			restore(paramsL, backupL);
+			backupL = null;
+		}
 		U = backupU;
 		V = backupV;
 		W = backupW;
 	}
 	
+	/***
+	 * Replaces the weights by single precision copies and drops the
+	 * accumulators, which halves the memory and the bandwidth of scoring.
+	 * Compacted parameters can be used for decoding but not trained.
+	 */
+	public void compactWeights()
+	{
+		if (params == null) return;
+		paramsF = Utils.toFloat(params);
+		if (paramsL != null)
+			paramsLF = Utils.toFloat(paramsL);
+		UF = Utils.toFloat(U);
+		VF = Utils.toFloat(V);
+		WF = Utils.toFloat(W);
+		params = paramsL = null;
+		U = V = W = null;
+		total = totalL = backup = backupL = null;
+		totalU = totalV = totalW = null;
+		backupU = backupV = backupW = null;
+	}
+	
+	/***
+	 * Replaces the weights by int8 copies with one scale per block of
+	 * QuantizedVector.BLOCK entries, a quarter of single precision, and drops
+	 * the accumulators. Quantized parameters can only be used for decoding.
+	 */
+	public void quantizeWeights()
+	{
+		// mapped weights are left as they are, their pages are shared
+		if (paramsQ == null && paramsM == null) {
+			paramsQ = params != null ? new QuantizedVector(params) : new QuantizedVector(paramsF);
+			if (paramsL != null) paramsLQ = new QuantizedVector(paramsL);
+			else if (paramsLF != null) paramsLQ = new QuantizedVector(paramsLF);
+			params = paramsL = null;
+			paramsF = paramsLF = null;
+		}
+		if (UQ == null) {
+			UQ = quantize(U, UF);
+			VQ = quantize(V, VF);
+			WQ = quantize(W, WF);
+			U = V = W = null;
+			UF = VF = WF = null;
+		}
+		total = totalL = backup = backupL = null;
+		totalU = totalV = totalW = null;
+		backupU = backupV = backupW = null;
+	}
+	
+	private static QuantizedVector[] quantize(double[][] a, float[][] aF)
+	{
+		int n = a != null ? a.length : aF.length;
+		QuantizedVector[] q = new QuantizedVector[n];
+		for (int i = 0; i < n; ++i)
+			q[i] = a != null ? new QuantizedVector(a[i]) : new QuantizedVector(aF[i]);
+		return q;
+	}
+	
+	/***
+	 * Makes the next write() write theta and the label weights as sparse
+	 * arrays, without their weights of at most threshold in magnitude.
+	 */
+	public void setSparseExport(boolean sparse, double threshold)
+	{
+		sparseExport = sparse;
+		exportThreshold = threshold;
+	}
+	
+	/***
+	 * Makes the next serialization leave out theta and the label weights,
+	 * which are written separately by writeMappedWeights.
+	 */
+	public void setMappedExport(boolean mapped)
+	{
+		this.mapped = mapped;
+	}
+	
+	/***
+	 * Writes theta then the label weights, if any, as little-endian floats
+	 * at the current position of the channel.
+	 */
+	public void writeMappedWeights(FileChannel channel) throws IOException
+	{
+		writeMapped(channel, params, paramsF, paramsQ, paramsM, size);
+		if (sizeL > 0)
+			writeMapped(channel, paramsL, paramsLF, paramsLQ, paramsLM, sizeL);
+	}
+	
+	private static void writeMapped(FileChannel channel, double[] a, float[] aF,
+			QuantizedVector aQ, FloatBuffer aM, int n) throws IOException
+	{
+		ByteBuffer buf = ByteBuffer.allocateDirect(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+		for (int x = 0; x < n; ++x) {
+			buf.putFloat(a != null ? (float) a[x] : aF != null ? aF[x]
+					: aQ != null ? (float) aQ.get(x) : aM.get(x));
+			if (!buf.hasRemaining()) {
+				buf.flip();
+				while (buf.hasRemaining()) channel.write(buf);
+				buf.clear();
+			}
+		}
+		buf.flip();
+		while (buf.hasRemaining()) channel.write(buf);
+	}
+	
+	/***
+	 * Maps theta and the label weights written by writeMappedWeights at the
+	 * given offset and returns the offset following them.
+	 */
+	public long mapWeights(FileChannel channel, long offset) throws IOException
+	{
+		paramsM = channel.map(FileChannel.MapMode.READ_ONLY, offset, 4L * size)
+				.order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+		offset += 4L * size;
+		if (sizeL > 0) {
+			paramsLM = channel.map(FileChannel.MapMode.READ_ONLY, offset, 4L * sizeL)
+					.order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+			offset += 4L * sizeL;
+		}
+		mapped = false;
+		return offset;
+	}
+	
+	/***
+	 * Replaces the mapped weights, if any, by single precision copies on the
+	 * heap.
+	 */
+	public void unmapWeights()
+	{
+		if (paramsM == null) return;
+		paramsF = new float[size];
+		paramsM.duplicate().get(paramsF);
+		if (paramsLM != null) {
+			paramsLF = new float[sizeL];
+			paramsLM.duplicate().get(paramsLF);
+		}
+		paramsM = paramsLM = null;
+	}
+	
+	private void writeObject(ObjectOutputStream out) throws IOException
+	{
+		if (!mapped) {
+			unmapWeights();
+			out.defaultWriteObject();
+			return;
+		}
+		
+		double[] p = params, pL = paramsL;
+		float[] pF = paramsF, pLF = paramsLF;
+		QuantizedVector pQ = paramsQ, pLQ = paramsLQ;
+		params = paramsL = null;
+		paramsF = paramsLF = null;
+		paramsQ = paramsLQ = null;
+		try {
+			out.defaultWriteObject();
+		} finally {
+			params = p;
+			paramsL = pL;
+			paramsF = pF;
+			paramsLF = pLF;
+			paramsQ = pQ;
+			paramsLQ = pLQ;
+		}
+	}
+	
 	public void clearUVW() 
 	{
 		U = new double[rank][N];
@@ -139,7 +677,7 @@ public class Parameters implements Serializable {
 	public void clearTheta() 
 	{
 		params = new double[size];
-		total = new double[size];
+		total = new TIntDoubleHashMap();
 	}
 	
 	public void printUStat() 
@@ -189,22 +727,30 @@ public class Parameters implements Serializable {
 	public void projectU(FeatureVector fv, double[] proj) 
 	{
 		for (int r = 0; r < rank; ++r) 
-			proj[r] = fv.dotProduct(U[r]);
+			proj[r] = UQ != null ? fv.dotProduct(UQ[r])
+					: UF != null ? fv.dotProduct(UF[r]) : fv.dotProduct(U[r]);
 	}
 	
 	public void projectV(FeatureVector fv, double[] proj) 
 	{
 		for (int r = 0; r < rank; ++r) 
-			proj[r] = fv.dotProduct(V[r]);
+			proj[r] = VQ != null ? fv.dotProduct(VQ[r])
+					: VF != null ? fv.dotProduct(VF[r]) : fv.dotProduct(V[r]);
 	}
 	
 	public double dotProduct(FeatureVector fv)
 	{
+		if (paramsQ != null) return fv.dotProduct(paramsQ);
+		if (paramsF != null) return fv.dotProduct(paramsF);
+		if (paramsM != null) return fv.dotProduct(paramsM);
 		return fv.dotProduct(params);
 	}
 	
 	public double dotProductL(FeatureVector fv)
 	{
+		if (paramsLQ != null) return fv.dotProduct(paramsLQ);
+		if (paramsLF != null) return fv.dotProduct(paramsLF);
+		if (paramsLM != null) return fv.dotProduct(paramsLM);
 		return fv.dotProduct(paramsL);
 	}
 	
@@ -212,6 +758,16 @@ public class Parameters implements Serializable {
 	{
 		double sum = 0;
 		int binDist = getBinnedDistance(dist);
+		if (WQ != null) {
+			for (int r = 0; r < rank; ++r)
+				sum += proju[r] * projv[r] * (WQ[r].get(binDist) + WQ[r].get(0));
+			return sum;
+		}
+		if (WF != null) {
+			for (int r = 0; r < rank; ++r)
+				sum += proju[r] * projv[r] * (WF[r][binDist] + WF[r][0]);
+			return sum;
+		}
 		for (int r = 0; r < rank; ++r)
 			sum += proju[r] * projv[r] * (W[r][binDist] + W[r][0]);
 		return sum;
@@ -231,18 +787,18 @@ public class Parameters implements Serializable {
         	
     	FeatureVector dtl = lfd.getLabeledFeatureDifference(gold, pred);
     	double loss = - dtl.dotProduct(paramsL) + Fi;
-        double l2norm = dtl.Squaredl2NormUnsafe();
+        double l2norm = dtl.Squaredl2Norm();
     	
         double alpha = loss/l2norm;
     	alpha = Math.min(C, alpha);
     	if (alpha > 0) {
     		double coeff = alpha;
     		double coeff2 = coeff * updCnt;
-    		for (int i = 0, K = dtl.size(); i < K; ++i) {
-	    		int x = dtl.x(i);
-	    		double z = dtl.value(i);
-	    		paramsL[x] += coeff * z;
-	    		totalL[x] += coeff2 * z;
+    		addEntries(paramsL, dtl, coeff);
+    		if (touchedL != null)
+    			markEntries(touchedL, dtl);
+    		synchronized (this) {
+    			addEntries(totalL, dtl, coeff2);
     		}
     	}
     	
@@ -266,14 +822,18 @@ public class Parameters implements Serializable {
     	dt.addEntries(gfd.getFeatureDifference(gold, pred));
     	    	
         double loss = - dt.dotProduct(params)*gamma + Fi;
-        double l2norm = dt.Squaredl2NormUnsafe() * gamma * gamma;
+        double l2norm = dt.Squaredl2Norm() * gamma * gamma;
     	
+        FeatureVector[] dU = new FeatureVector[rank];
+        FeatureVector[] dV = new FeatureVector[rank];
+        FeatureVector[] dW = new FeatureVector[rank];
+        
         int updId = (updCnt + offset) % 3;
         //if ( updId == 1 ) {
         	// update U
         	for (int k = 0; k < rank; ++k) {        		
         		FeatureVector dUk = getdU(k, lfd, actDeps, predDeps);
-            	l2norm += dUk.Squaredl2NormUnsafe() * (1-gamma) * (1-gamma);            	
+            	l2norm += dUk.Squaredl2Norm() * (1-gamma) * (1-gamma);            	
             	loss -= dUk.dotProduct(U[k]) * (1-gamma);
             	dU[k] = dUk;
         	}
@@ -281,7 +841,7 @@ public class Parameters implements Serializable {
         	// update V
         	for (int k = 0; k < rank; ++k) {
         		FeatureVector dVk = getdV(k, lfd, actDeps, predDeps);
-            	l2norm += dVk.Squaredl2NormUnsafe() * (1-gamma) * (1-gamma);
+            	l2norm += dVk.Squaredl2Norm() * (1-gamma) * (1-gamma);
             	//loss -= dVk.dotProduct(V[k]) * (1-gamma);
             	dV[k] = dVk;
         	}        	
@@ -289,7 +849,7 @@ public class Parameters implements Serializable {
         	// update W
         	for (int k = 0; k < rank; ++k) {
         		FeatureVector dWk = getdW(k, lfd, actDeps, predDeps);
-            	l2norm += dWk.Squaredl2NormUnsafe() * (1-gamma) * (1-gamma);
+            	l2norm += dWk.Squaredl2Norm() * (1-gamma) * (1-gamma);
             	//loss -= dWk.dotProduct(W[k]) * (1-gamma);
             	dW[k] = dWk;
         	}   
@@ -299,58 +859,36 @@ public class Parameters implements Serializable {
     	alpha = Math.min(C, alpha);
     	if (alpha > 0) {
     		
-    		{
-    			// update theta
-	    		double coeff = alpha * gamma, coeff2 = coeff * updCnt;
-	    		for (int i = 0, K = dt.size(); i < K; ++i) {
-		    		int x = dt.x(i);
-		    		double z = dt.value(i);
-		    		params[x] += coeff * z;
-		    		total[x] += coeff2 * z;
-	    		}
+    		// the weights are updated without locking (Hogwild) when training
+    		// with several threads; the accumulators for averaging are
+    		// updated under the lock so that no update is lost
+    		double coeff = alpha * gamma, coeff2 = coeff * updCnt;
+    		double coeffT = alpha * (1-gamma), coeffT2 = coeffT * updCnt;
+    		
+    		// update theta
+    		addEntries(params, dt, coeff);
+    		for (int k = 0; k < rank; ++k) {
+    			// update U, V and W
+    			addEntries(U[k], dU[k], coeffT);
+    			addEntries(V[k], dV[k], coeffT);
+    			addEntries(W[k], dW[k], coeffT);
+    		}
+    		
+    		if (touched != null) {
+    			markEntries(touched, dt);
+    			for (int k = 0; k < rank; ++k) {
+    				markEntries(touchedU, dU[k]);
+    				markEntries(touchedV, dV[k]);
+    			}
     		}
     		
-    		//if ( updId == 1 ) 
-    		{
-    			// update U
-    			double coeff = alpha * (1-gamma), coeff2 = coeff * updCnt;
-            	for (int k = 0; k < rank; ++k) {
-            		FeatureVector dUk = dU[k];
-            		for (int i = 0, K = dUk.size(); i < K; ++i) {
-            			int x = dUk.x(i);
-            			double z = dUk.value(i);
-            			U[k][x] += coeff * z;
-            			totalU[k][x] += coeff2 * z;
-            		}
-            	}
-    		}	
-    		//else if ( updId == 2 ) 
-    		{
-    			// update V
-    			double coeff = alpha * (1-gamma), coeff2 = coeff * updCnt;
-            	for (int k = 0; k < rank; ++k) {
-            		FeatureVector dVk = dV[k];
-            		for (int i = 0, K = dVk.size(); i < K; ++i) {
-            			int x = dVk.x(i);
-            			double z = dVk.value(i);
-            			V[k][x] += coeff * z;
-            			totalV[k][x] += coeff2 * z;
-            		}
-            	}            	
-    		} 
-            //else 
-    		{
-    			// update W
-    			double coeff = alpha * (1-gamma), coeff2 = coeff * updCnt;
-            	for (int k = 0; k < rank; ++k) {
-            		FeatureVector dWk = dW[k];
-            		for (int i = 0, K = dWk.size(); i < K; ++i) {
-            			int x = dWk.x(i);
-            			double z = dWk.value(i);
-            			W[k][x] += coeff * z;
-            			totalW[k][x] += coeff2 * z;
-            		}
-            	}  
+    		synchronized (this) {
+    			addEntries(total, dt, coeff2);
+    			for (int k = 0; k < rank; ++k) {
+    				addEntries(totalU[k], dU[k], coeffT2);
+    				addEntries(totalV[k], dV[k], coeffT2);
+    				addEntries(totalW[k], dW[k], coeffT2);
+    			}
     		}
     	}
     	
@@ -364,7 +902,7 @@ public class Parameters implements Serializable {
 		fv.addEntries(gold);
 		fv.addEntries(pred, -1.0);
 		
-		double l2norm = fv.Squaredl2NormUnsafe();
+		double l2norm = fv.Squaredl2Norm();
 		double alpha = loss/l2norm;
 	    alpha = Math.min(C, alpha);
 	    if (alpha > 0) {
@@ -374,16 +912,36 @@ public class Parameters implements Serializable {
 	    		int x = fv.x(i);
 	    		double z = fv.value(i);
 	    		params[x] += coeff * z;
-	    		total[x] += coeff2 * z;
+	    		total.adjustOrPutValue(x, coeff2 * z, coeff2 * z);
     		}
 	    }
 	}
 	
+    private static void addEntries(double[] a, FeatureVector fv, double coeff)
+    {
+    	for (int i = 0, K = fv.size(); i < K; ++i)
+    		a[fv.x(i)] += coeff * fv.value(i);
+    }
+    
+    private static void addEntries(TIntDoubleHashMap a, FeatureVector fv, double coeff)
+    {
+    	for (int i = 0, K = fv.size(); i < K; ++i) {
+    		double v = coeff * fv.value(i);
+    		a.adjustOrPutValue(fv.x(i), v, v);
+    	}
+    }
+    
+    private static void markEntries(BitSet indices, FeatureVector fv)
+    {
+    	for (int i = 0, K = fv.size(); i < K; ++i)
+    		indices.set(fv.x(i));
+    }
+    
     private FeatureVector getdU(int k, LocalFeatureData lfd, int[] actDeps, int[] predDeps) 
     {
     	double[][] wpV = lfd.wpV;
     	FeatureVector[] wordFvs = lfd.wordFvs;
-    	int L = wordFvs.length;
+    	int L = lfd.len;
     	FeatureVector dU = new FeatureVector(N);
     	for (int mod = 1; mod < L; ++mod) {
     		int head  = actDeps[mod];
@@ -401,7 +959,7 @@ public class Parameters implements Serializable {
     private FeatureVector getdV(int k, LocalFeatureData lfd, int[] actDeps, int[] predDeps) {
     	double[][] wpU = lfd.wpU;
     	FeatureVector[] wordFvs = lfd.wordFvs;
-    	int L = wordFvs.length;
+    	int L = lfd.len;
     	FeatureVector dV = new FeatureVector(M);
     	for (int mod = 1; mod < L; ++mod) {
     		int head  = actDeps[mod];
@@ -420,7 +978,7 @@ public class Parameters implements Serializable {
     private FeatureVector getdW(int k, LocalFeatureData lfd, int[] actDeps, int[] predDeps) {
     	double[][] wpU = lfd.wpU, wpV = lfd.wpV;
     	FeatureVector[] wordFvs = lfd.wordFvs;
-    	int L = wordFvs.length;
+    	int L = lfd.len;
     	double[] dW = new double[D];
     	for (int mod = 1; mod < L; ++mod) {
     		int head  = actDeps[mod];
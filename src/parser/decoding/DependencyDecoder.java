@@ -31,6 +31,14 @@ public abstract class DependencyDecoder {
     
     public void shutdown()
     {
+    }
+    
+    public void resetStats()
+    {
+    }
+    
+    public void printStats()
+    {
     }
 
 	public abstract DependencyInstance decode(DependencyInstance inst,
@@ -1,13 +1,13 @@
 package parser.decoding;
 
-import java.util.concurrent.ExecutorCompletionService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ExecutorService;
-
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import parser.DependencyArcList;
 import parser.DependencyInstance;
 import parser.GlobalFeatureData;
+import parser.IncrementalGlobalScorer;
 import parser.LocalFeatureData;
 import parser.Options;
 import parser.sampling.RandomWalkSampler;
@@ -15,86 +15,248 @@ import utils.Utils;
 
 public class HillClimbingDecoder extends DependencyDecoder {
 	
-	DependencyInstance pred, inst;
-	LocalFeatureData lfd;
-	GlobalFeatureData gfd;
-	boolean addLoss;
 	final int labelLossType;
+	final RestartScheduler scheduler;
 	
-	//int[][] staticTypes;
+	// restart count of the last decoded sentence
+	int lastRestarts;
 	
-	double bestScore;	
-	int unchangedRuns, totRuns;
-	volatile boolean stopped;
-    
-    ExecutorService executorService;
-	ExecutorCompletionService<Object> decodingService;
-	HillClimbingTask[] tasks;
+	// climbing workspaces of this decoder that no restart is using; there
+	// are at most as many as restarts of one sentence in flight
+	static final AtomicInteger numClimbers = new AtomicInteger();
+	final ConcurrentLinkedQueue<HillClimber> idleClimbers = new ConcurrentLinkedQueue<HillClimber>();
 	
 	public HillClimbingDecoder(Options options) {
 		this.options = options;
 		labelLossType = options.labelLossType;
-        executorService = Executors.newFixedThreadPool(options.numHcThreads);
-		decodingService = new ExecutorCompletionService<Object>(executorService);
-		tasks = new HillClimbingTask[options.numHcThreads];
-		for (int i = 0; i < tasks.length; ++i) {
-			tasks[i] = new HillClimbingTask();
-			tasks[i].id = i;
-			tasks[i].sampler = new RandomWalkSampler(i, options);
-		}
+		scheduler = RestartScheduler.getScheduler(options.numHcThreads);
 	}
    
    @Override
     public void shutdown()
     {
-        //System.out.println("shutdown");
-        executorService.shutdownNow();
+        // the restart scheduler is shared by all decoders and stays alive
+        idleClimbers.clear();
     }
-
+   
+   @Override
+   public void resetStats()
+   {
+	   scheduler.resetStats();
+   }
+   
+   @Override
+   public void printStats()
+   {
+	   scheduler.printStats();
+   }
+   
+   public int getLastRestarts()
+   {
+	   return lastRestarts;
+   }
+   
 	@Override
 	public DependencyInstance decode(DependencyInstance inst,
 			LocalFeatureData lfd, GlobalFeatureData gfd, boolean addLoss) {
-		this.inst = inst;
-		this.lfd = lfd;
-		this.gfd = gfd;
-		this.addLoss = addLoss;
-		bestScore = Double.NEGATIVE_INFINITY;
-		pred = new DependencyInstance(inst);
-		pred.heads = null;
-		totRuns = 0;
-		unchangedRuns = 0;
-		stopped = false;
-		//if (options.learnLabel)
-		//	staticTypes = lfd.getStaticTypes();
 		
-		for (int i = 0; i < tasks.length; ++i) {
-			decodingService.submit(tasks[i], null);			
+		SentenceState state = new SentenceState(inst, lfd, gfd, addLoss);
+		
+		// keep numHcThreads restarts of this sentence in flight: one on the
+		// calling thread, so that every sentence makes progress however many
+		// callers share the scheduler, and the others on the scheduler, where
+		// every finished restart schedules its successor
+		for (int i = 1; i < options.numHcThreads; ++i)
+			scheduler.submit(new RestartTask(state));
+		while (climbOnce(state, false));
+		state.await();
+		
+		lastRestarts = state.getRuns();
+		scheduler.addSentence(lastRestarts);
+		
+		return state.pred;		
+	}
+	
+	/***
+	 * Runs one restart of the sentence on the current thread. Returns false
+	 * once the sentence has converged or failed. Only the time of scheduler
+	 * workers counts in the utilization of the scheduler.
+	 */
+	boolean climbOnce(SentenceState state, boolean onScheduler)
+	{
+		if (!state.enter()) return false;
+		
+		long start = System.nanoTime();
+		try {
+			HillClimber climber = idleClimbers.poll();
+			if (climber == null)
+				climber = new HillClimber(numClimbers.getAndIncrement(), options);
+			DependencyInstance now = climber.climb(state);
+			double score = now == null ? 0 : climber.calcScore(now);
+			idleClimbers.add(climber);
+			if (onScheduler)
+				scheduler.addBusyTime(System.nanoTime() - start);
+			state.addResult(now, score);
+		} catch (Throwable e) {
+			state.fail(e);
+			return false;
+		} finally {
+			state.exit();
+		}
+		return !state.stopped;
+	}
+	
+	/***
+	 * Best tree found so far for one sentence. Restarts still running when
+	 * the sentence converges are abandoned and their results ignored; the
+	 * caller only waits for them to notice, at their next check of stopped,
+	 * so that the feature data of the sentence can be reused afterwards.
+	 */
+	class SentenceState {
+		
+		final DependencyInstance inst;
+		final LocalFeatureData lfd;
+		final GlobalFeatureData gfd;
+		final boolean addLoss;
+		final int converge;
+		
+		DependencyInstance pred;
+		double bestScore;	
+		int unchangedRuns, totRuns;
+		int numClimbing;	// restarts using lfd and gfd
+		volatile boolean stopped;
+		Throwable error;
+		
+		SentenceState(DependencyInstance inst, LocalFeatureData lfd,
+				GlobalFeatureData gfd, boolean addLoss)
+		{
+			this.inst = inst;
+			this.lfd = lfd;
+			this.gfd = gfd;
+			this.addLoss = addLoss;
+			converge = addLoss ? options.numTrainConverge : options.numTestConverge;
+			bestScore = Double.NEGATIVE_INFINITY;
+			pred = new DependencyInstance(inst);
+			pred.heads = null;
 		}
 		
-		for (int i = 0; i < tasks.length; ++i) {
-			try {
-				decodingService.take();
-			} catch (InterruptedException e) {
-				System.out.println("Hill climbing thread interupted!!!!");
+		synchronized void addResult(DependencyInstance now, double score)
+		{
+			if (stopped || now == null) return;
+			++totRuns;
+			if (score > bestScore) {
+				bestScore = score;
+				unchangedRuns = 0;
+				pred.heads = now.heads;
+				pred.deplbids = now.deplbids;
+			} else {
+				++unchangedRuns;
+				if (unchangedRuns >= converge)
+					stop();
 			}
 		}
 		
-		//if (options.learnLabel)
-		//	lfd.predictLabels(pred.heads, pred.deplbids, addLoss);
+		/***
+		 * Starts a restart, unless the sentence has stopped.
+		 */
+		synchronized boolean enter()
+		{
+			if (stopped) return false;
+			++numClimbing;
+			return true;
+		}
+		
+		synchronized void exit()
+		{
+			if (--numClimbing == 0) notifyAll();
+		}
+		
+		synchronized void fail(Throwable e)
+		{
+			if (!stopped) {
+				error = e;
+				stop();
+			}
+		}
+		
+		/***
+		 * Ends the sentence. Restarts still running return at their next
+		 * check, and do not wait for scores that a failed restart claimed.
+		 */
+		private void stop()
+		{
+			stopped = true;
+			lfd.abandonScoreTables();
+			gfd.abandonScoreTables();
+			notifyAll();
+		}
+		
+		synchronized void await()
+		{
+			while (!stopped || numClimbing > 0) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					System.out.println("Hill climbing thread interupted!!!!");
+					stop();
+				}
+			}
+			if (error != null)
+				throw new RuntimeException(error);
+		}
 		
-		return pred;		
+		synchronized int getRuns()
+		{
+			return totRuns;
+		}
 	}
 	
-	public class HillClimbingTask implements Runnable {
+	/***
+	 * One random restart followed by hill climbing. Runs on a worker of the
+	 * shared scheduler and forks the next restart of the same sentence, so
+	 * the successor usually stays on the local deque unless an idle worker
+	 * steals it.
+	 */
+	class RestartTask extends RecursiveAction {
+		
+		private static final long serialVersionUID = 1L;
+		
+		final SentenceState state;
 		
-		public int id;
+		RestartTask(SentenceState state)
+		{
+			this.state = state;
+		}
 		
+		@Override
+		protected void compute() {
+			if (climbOnce(state, true))
+				new RestartTask(state).fork();
+		}
+	}
+	
+	static class HillClimber {
+		
+		final Options options;
 		RandomWalkSampler sampler;
-		int converge;
+		
+		SentenceState s;
+		DependencyInstance inst;
+		LocalFeatureData lfd;
+		GlobalFeatureData gfd;
+		boolean addLoss;
 	
 		int n, size;
 		int[] dfslis;
 		DependencyArcList arcLis;
+		IncrementalGlobalScorer scorer;
+		
+		HillClimber(int id, Options options)
+		{
+			this.options = options;
+			sampler = new RandomWalkSampler(id, options);
+			scorer = new IncrementalGlobalScorer();
+		}
 		
 		public void checkUpdateCorrect(int[] heads, DependencyArcList arcLis) {
 			DependencyArcList tmp = new DependencyArcList(heads, options.useHO);
@@ -143,102 +305,95 @@ public class HillClimbingDecoder extends DependencyDecoder {
 			}
 		}
 				
-		@Override
-		public void run() {
+		public void checkScoreCorrect(int[] heads, DependencyArcList arcLis) {
+			double expected = gfd.getScore(heads, arcLis);
+			double score = scorer.getScore();
+			if (Math.abs(expected - score) > 1e-6) {
+				System.out.printf("incremental global score %f, expected %f%n", score, expected);
+				System.exit(0);
+			}
+		}
+		
+		/***
+		 * Runs one restart. Returns null if the sentence converged before
+		 * the climb finished.
+		 */
+		DependencyInstance climb(SentenceState s) {
 			
+			this.s = s;
+			inst = s.inst;
+			lfd = s.lfd;
+			gfd = s.gfd;
+			addLoss = s.addLoss;
 			n = inst.length;
-			converge = addLoss ? options.numTrainConverge : options.numTestConverge;
 			
 			if (dfslis == null || dfslis.length < n) {
 				dfslis = new int[n];				
 			}
-			if (arcLis == null)
+			if (arcLis == null || (arcLis.left != null) != options.useHO)
 				arcLis = new DependencyArcList(n, options.useHO);
 			else
 				arcLis.resize(n, options.useHO);
-			
-			while (!stopped) {
-				
-				//DependencyInstance now = sampler.randomWalkSampling(
-				//		inst, lfd, addLoss);
-				DependencyInstance now = sampler.uniformRandomWalkSampling(
-						inst, lfd, addLoss);
 				
-				// hill climb
-				int[] heads = now.heads;
-				int[] deplbids = now.deplbids;
-			    
-				arcLis.constructDepTreeArcList(heads);
-				if (arcLis.left != null && arcLis.right != null)
-					arcLis.constructSpan();
-				if (arcLis.nonproj != null)
-					arcLis.constructNonproj(heads);
+			//DependencyInstance now = sampler.randomWalkSampling(
+			//		inst, lfd, addLoss);
+			DependencyInstance now = sampler.uniformRandomWalkSampling(
+					inst, lfd, addLoss);
+			
+			// hill climb
+			int[] heads = now.heads;
+		    
+			arcLis.constructDepTreeArcList(heads);
+			if (arcLis.left != null && arcLis.right != null)
+				arcLis.constructSpan();
+			if (arcLis.nonproj != null)
+				arcLis.constructNonproj(heads);
+			scorer.init(gfd, heads, arcLis);
 
-                int cnt = 0;
-				boolean more;
-				for (;;) {
-					more = false;
-					depthFirstSearch(heads);
-					Utils.Assert(size == n-1);
-					for (int i = 0; i < size; ++i) {
-						int m = dfslis[i];
-						
-						int bestHead = heads[m];                        
-						double maxScore = calcScore(heads, m, arcLis);
-						
-						int lastHead = heads[m];
-						int hst = lfd.startIndex(m), hed = lfd.endIndex(m);
-						//for (int h = 0; h < n; ++h) {
-						for (int hid = hst; hid < hed; ++hid) {
-							int h = lfd.getHead(hid);
-							if (/*h != m &&*/ h != bestHead /*&& !lfd.isPruned(h, m)*/
-								&& !isAncestorOf(heads, m, h)) {
-								heads[m] = h;
-								arcLis.update(m, lastHead, h, heads);
-								//checkUpdateCorrect(heads, arcLis);
-								lastHead = h;
-								double score = calcScore(heads, m, arcLis);
-								if (score > maxScore) {
-									more = true;
-									bestHead = h;
-									maxScore = score;
-								}
+			boolean more;
+			for (;;) {
+				if (s.stopped) return null;
+				more = false;
+				depthFirstSearch(heads);
+				Utils.Assert(size == n-1);
+				for (int i = 0; i < size; ++i) {
+					int m = dfslis[i];
+					
+					int bestHead = heads[m];                        
+					double maxScore = calcScore(heads, m, arcLis);
+					
+					int lastHead = heads[m];
+					int hst = lfd.startIndex(m), hed = lfd.endIndex(m);
+					//for (int h = 0; h < n; ++h) {
+					for (int hid = hst; hid < hed; ++hid) {
+						if (s.stopped) return null;
+						int h = lfd.getHead(hid);
+						if (/*h != m &&*/ h != bestHead /*&& !lfd.isPruned(h, m)*/
+							&& !isAncestorOf(heads, m, h)) {
+							heads[m] = h;
+							arcLis.update(m, lastHead, h, heads);
+							scorer.update(m, lastHead, h);
+							//checkUpdateCorrect(heads, arcLis);
+							//checkScoreCorrect(heads, arcLis);
+							lastHead = h;
+							double score = calcScore(heads, m, arcLis);
+							if (score > maxScore) {
+								more = true;
+								bestHead = h;
+								maxScore = score;
 							}
 						}
-						heads[m] = bestHead;
-						arcLis.update(m, lastHead, bestHead, heads);
-						//checkUpdateCorrect(heads, arcLis);
 					}
-					if (!more) break;					
-
-                    //DEBUG
-                    //++cnt;
-                    //if (cnt % 100 == 0) {
-                    //    System.out.println(cnt);
-                    //}
-				}
-				
-				//if (options.learnLabel) {
-				//	for (int m = 1; m < n; ++m)
-				//		deplbids[m] = staticTypes[heads[m]][m];
-				//}
-				
-				double score = calcScore(now);
-				synchronized (pred) {
-					++totRuns;
-					if (score > bestScore) {
-						bestScore = score;
-						unchangedRuns = 0;
-						pred.heads = heads;
-						pred.deplbids = deplbids;
-					} else {
-						++unchangedRuns;
-						if (unchangedRuns >= converge)
-							stopped = true;
-					}
-					
+					heads[m] = bestHead;
+					arcLis.update(m, lastHead, bestHead, heads);
+					scorer.update(m, lastHead, bestHead);
+					//checkUpdateCorrect(heads, arcLis);
+					//checkScoreCorrect(heads, arcLis);
 				}
+				if (!more) break;					
 			}
+			
+			return now;
 		}
 		
 		private boolean isAncestorOf(int[] heads, int par, int ch) 
@@ -261,7 +416,7 @@ public class HillClimbingDecoder extends DependencyDecoder {
 		private double calcScore(int[] heads, int m, DependencyArcList arcLis)
 		{
 			double score = lfd.getPartialScore2(heads, m, arcLis)
-						 + gfd.getScore(heads, arcLis);
+						 + scorer.getScore();
 //			if (options.learnLabel) {
 //				int t = staticTypes[heads[m]][m];
 //				score += lfd.getLabeledArcScore(heads[m], m, t);
@@ -280,7 +435,7 @@ public class HillClimbingDecoder extends DependencyDecoder {
 			return score;
 		}
 		
-		private double calcScore(DependencyInstance now) 
+		double calcScore(DependencyInstance now) 
 		{
 			double score = 0;
 			int[] heads = now.heads;
@@ -0,0 +1,90 @@
+package parser.decoding;
+
+import java.util.HashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/***
+ * Work-stealing scheduler for hill-climbing restarts. One ForkJoin pool of
+ * each size is shared by the hill-climbing decoders in the JVM that ask for
+ * that size, so restarts of different sentences are interleaved and idle
+ * workers steal pending restarts instead of waiting for the slowest restart
+ * of a sentence. Decoders also climb on their calling threads, so
+ * sentence-parallel callers add their own threads to the pool's instead of
+ * queueing behind it.
+ */
+public class RestartScheduler {
+
+	private static final HashMap<Integer, RestartScheduler> shared = new HashMap<Integer, RestartScheduler>();
+
+	final ForkJoinPool pool;
+	final int parallelism;
+
+	// statistics since the last resetStats(); busy time is that of the
+	// pool workers only
+	final AtomicLong busyNanos = new AtomicLong();
+	final AtomicLong restarts = new AtomicLong();
+	final AtomicLong sentences = new AtomicLong();
+	final AtomicLong maxRestarts = new AtomicLong();
+	volatile long startTime;
+
+	private RestartScheduler(int numThreads)
+	{
+		parallelism = numThreads;
+		pool = new ForkJoinPool(numThreads);
+		startTime = System.nanoTime();
+	}
+
+	/***
+	 * Returns the scheduler with numThreads workers, created on first use.
+	 */
+	public static synchronized RestartScheduler getScheduler(int numThreads)
+	{
+		RestartScheduler scheduler = shared.get(numThreads);
+		if (scheduler == null) {
+			scheduler = new RestartScheduler(numThreads);
+			shared.put(numThreads, scheduler);
+		}
+		return scheduler;
+	}
+
+	public void submit(ForkJoinTask<?> task)
+	{
+		pool.execute(task);
+	}
+
+	void addBusyTime(long nanos)
+	{
+		busyNanos.addAndGet(nanos);
+	}
+
+	void addSentence(int numRestarts)
+	{
+		sentences.incrementAndGet();
+		restarts.addAndGet(numRestarts);
+		long max = maxRestarts.get();
+		while (numRestarts > max && !maxRestarts.compareAndSet(max, numRestarts))
+			max = maxRestarts.get();
+	}
+
+	public void resetStats()
+	{
+		busyNanos.set(0);
+		restarts.set(0);
+		sentences.set(0);
+		maxRestarts.set(0);
+		startTime = System.nanoTime();
+	}
+
+	public void printStats()
+	{
+		long n = Math.max(1, sentences.get());
+		double elapsed = (System.nanoTime() - startTime) * (double) parallelism;
+		double idle = Math.max(0, elapsed - busyNanos.get());
+		System.out.printf("  Restarts/sent: %.1f (max %d)\tPool idle/sent: %.2fms\tPool utilization: %.2f%%%n",
+				restarts.get() / (double) n, maxRestarts.get(),
+				idle / 1e6 / n,
+				100.0 * busyNanos.get() / Math.max(1.0, elapsed));
+	}
+}
@@ -5,6 +5,9 @@ import static parser.feature.FeatureTemplate.Arc.*;
 import static parser.feature.FeatureTemplate.Word.*;
 import gnu.trove.set.hash.TLongHashSet;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.io.Serializable;
 
 import parser.DependencyArcList;
@@ -47,8 +50,10 @@ public class SyntacticFeatureFactory implements Serializable {
 	
 	public int ccDepType;
 	
-	public final int numArcFeats = 115911564;	// number of arc structure features
-	public final int numLabeledArcFeats = 115911564;
+	public int numArcFeats;				// number of arc structure features
+	public int numLabeledArcFeats;
+	private int hashMask;				// numArcFeats-1 if it is a power of two, 0 for modulo
+	private boolean mixHash;			// hash codes with a 64-bit mixer instead of fold-and-multiply
 	public int numWordFeats;			// number of word features
 	
 	private boolean stoppedGrowth;
@@ -66,13 +71,76 @@ public class SyntacticFeatureFactory implements Serializable {
 		stoppedGrowth = false;
 		featureHashSet = new TLongHashSet(100000);
 		
-		//numArcFeats = 0;
+		// the hashed feature space is saved with the model
+		numArcFeats = options.numHashedFeats;
+		numLabeledArcFeats = options.numHashedFeats;
+		hashMask = Integer.bitCount(numArcFeats) == 1 ? numArcFeats - 1 : 0;
+		mixHash = options.mixFeatureHash;
 		numWordFeats = 0;
 	}
 	
+	/***
+	 * Reads a factory written by write(). The word vectors are set by the pipe.
+	 */
+	public SyntacticFeatureFactory(DataInputStream in, Options options) throws IOException
+	{
+		this.options = options;
+		
+		TOKEN_START = in.readInt();
+		TOKEN_END = in.readInt();
+		TOKEN_MID = in.readInt();
+		TOKEN_QUOTE = in.readInt();
+		TOKEN_RRB = in.readInt();
+		TOKEN_LRB = in.readInt();
+		
+		tagNumBits = in.readInt();
+		wordNumBits = in.readInt();
+		depNumBits = in.readInt();
+		disNumBits = in.readInt();
+		labelNumBits = in.readInt();
+		flagBits = in.readInt();
+		ccDepType = in.readInt();
+		
+		numArcFeats = in.readInt();
+		numLabeledArcFeats = in.readInt();
+		hashMask = in.readInt();
+		mixHash = in.readBoolean();
+		numWordFeats = in.readInt();
+		
+		stoppedGrowth = in.readBoolean();
+		wordAlphabet = new Alphabet(in);
+	}
+	
+	public void write(DataOutputStream out) throws IOException
+	{
+		out.writeInt(TOKEN_START);
+		out.writeInt(TOKEN_END);
+		out.writeInt(TOKEN_MID);
+		out.writeInt(TOKEN_QUOTE);
+		out.writeInt(TOKEN_RRB);
+		out.writeInt(TOKEN_LRB);
+		
+		out.writeInt(tagNumBits);
+		out.writeInt(wordNumBits);
+		out.writeInt(depNumBits);
+		out.writeInt(disNumBits);
+		out.writeInt(labelNumBits);
+		out.writeInt(flagBits);
+		out.writeInt(ccDepType);
+		
+		out.writeInt(numArcFeats);
+		out.writeInt(numLabeledArcFeats);
+		out.writeInt(hashMask);
+		out.writeBoolean(mixHash);
+		out.writeInt(numWordFeats);
+		
+		out.writeBoolean(stoppedGrowth);
+		wordAlphabet.write(out);
+	}
+	
 	public void closeAlphabets()
 	{
-		wordAlphabet.stopGrowth();
+		wordAlphabet.freeze();
 		//arcAlphabet.stopGrowth();
 		
 		stoppedGrowth = true;
@@ -2939,8 +3007,18 @@ public class SyntacticFeatureFactory implements Serializable {
     
     private final int hashcode2int(long code)
     {
-    	long hash = (code ^ (code&0xffffffff00000000L) >>> 32)*31;
-    	int id = (int)((hash < 0 ? -hash : hash) % 115911564);
+    	long hash;
+    	if (mixHash) {
+    		// finalizer of MurmurHash3: every bit of the code reaches the low
+    		// bits, so masking is as good as modulo
+    		hash = (code ^ (code >>> 33)) * 0xff51afd7ed558ccdL;
+    		hash = (hash ^ (hash >>> 33)) * 0xc4ceb9fe1a85ec53L;
+    		hash ^= hash >>> 33;
+    	} else
+    		hash = (code ^ (code&0xffffffff00000000L) >>> 32)*31;
+    	if (hashMask != 0)
+    		return (int) (hash & hashMask);
+    	int id = (int)((hash < 0 ? -hash : hash) % numArcFeats);
     	return id;
     }
     
@@ -2960,34 +3038,26 @@ public class SyntacticFeatureFactory implements Serializable {
     //}
     
     public final void addArcFeature(long code, FeatureVector mat) {
-    	long hash = (code ^ (code&0xffffffff00000000L) >>> 32)*31;
-    	int id = (int)((hash < 0 ? -hash : hash) % 115911564);
-    	//int id = ((hash ^ (hash >> 31)) - (hash >> 31)) % 115911564;
+    	int id = hashcode2int(code);
     	mat.addEntry(id, 1.0);
     	if (!stoppedGrowth)
     		featureHashSet.add(code);
     }
     
     public final void addArcFeature(long code, double value, FeatureVector mat) {
-    	long hash = (code ^ (code&0xffffffff00000000L) >>> 32)*31;
-    	int id = (int)((hash < 0 ? -hash : hash) % 115911564);
-    	//int id = ((hash ^ (hash >> 31)) - (hash >> 31)) % 115911564;    	
+    	int id = hashcode2int(code);
     	mat.addEntry(id, value);
     	if (!stoppedGrowth)
     		featureHashSet.add(code);
     }
     
     public final void addLabeledArcFeature(long code, FeatureVector mat) {
-    	long hash = (code ^ (code&0xffffffff00000000L) >>> 32)*31;
-    	int id = (int)((hash < 0 ? -hash : hash) % 115911564);
-    	//int id = ((hash ^ (hash >> 31)) - (hash >> 31)) % 115911564;    	
+    	int id = hashcode2int(code);
     	mat.addEntry(id, 1.0);
     }
     
     public final void addLabeledArcFeature(long code, double value, FeatureVector mat) {
-    	long hash = (code ^ (code&0xffffffff00000000L) >>> 32)*31;
-    	int id = (int)((hash < 0 ? -hash : hash) % 115911564);
-    	//int id = ((hash ^ (hash >> 31)) - (hash >> 31)) % 115911564;    	
+    	int id = hashcode2int(code);
     	mat.addEntry(id, value);
     }
     
@@ -1,5 +1,6 @@
 package parser.io;
 
+import java.io.BufferedReader;
 import java.io.IOException;
 import java.util.ArrayList;
 
@@ -14,7 +15,7 @@ public class Conll06Reader extends DependencyReader {
 	}
 	
 	@Override
-	public DependencyInstance nextInstance() throws IOException {
+	DependencyInstance readInstance(BufferedReader reader) throws IOException {
 		
 	    ArrayList<String[]> lstLines = new ArrayList<String[]>();
 
@@ -63,7 +64,7 @@ public class Conll06Reader extends DependencyReader {
 	    		cpos[i] = pos[i];
 	    	
 	    	if (!parts[5].equals("_")) feats[i] = parts[5].split("\\|");
-	    	heads[i] = Integer.parseInt(parts[6]);
+	    	heads[i] = parts[6].equals("_") ? -1 : Integer.parseInt(parts[6]);
 	    	deprels[i] = (/*options.learnLabel &&*/ isLabeled) ? parts[7] : "<no-type>";
 	    }
 	    if (!hasLemma) lemmas = null;
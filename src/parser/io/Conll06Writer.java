@@ -1,7 +1,5 @@
 package parser.io;
 
-import java.io.IOException;
-
 import parser.DependencyInstance;
 import parser.DependencyPipe;
 import parser.Options;
@@ -12,15 +10,17 @@ public class Conll06Writer extends DependencyWriter {
 	public Conll06Writer(Options options, DependencyPipe pipe) {
 		this.options = options;
 		this.labels = pipe.types;
+		this.isLabeled = options.learnLabel;
+		this.blankLineAfterEach = true;
 	}
 	
 	@Override
-	public void writeInstance(DependencyInstance inst) throws IOException {
+	public void format(DependencyInstance inst, StringBuilder out) {
 		
 		//if (first) 
 		//	first = false;
 		//else
-		//	writer.write("\n");
+		//	out.append("\n");
 		
 		String[] forms = inst.forms;
 		String[] lemmas = inst.lemmas;
@@ -32,18 +32,16 @@ public class Conll06Writer extends DependencyWriter {
 	    // 3 eles ele pron pron-pers M|3P|NOM 4 SUBJ _ _
 	    // ID FORM LEMMA COURSE-POS FINE-POS FEATURES HEAD DEPREL PHEAD PDEPREL
 		for (int i = 1, N = inst.length; i < N; ++i) {
-			writer.write(i + "\t");
-			writer.write(forms[i] + "\t");
-			writer.write((lemmas != null && lemmas[i] != "" ? inst.lemmas[i] : "_") + "\t");
-			writer.write(cpos[i] + "\t");
-			writer.write(pos[i] + "\t");
-			writer.write("_\t");
-			writer.write(heads[i] + "\t");
-			writer.write((isLabeled ? labels[labelids[i]] : "_") + "\t_\t_");
-			writer.write("\n");
+			out.append(i).append('\t');
+			out.append(forms[i]).append('\t');
+			out.append(lemmas != null && lemmas[i] != "" ? inst.lemmas[i] : "_").append('\t');
+			out.append(cpos[i]).append('\t');
+			out.append(pos[i]).append('\t');
+			out.append("_\t");
+			out.append(heads[i]).append('\t');
+			out.append(isLabeled ? labels[labelids[i]] : "_").append("\t_\t_");
+			out.append('\n');
 		}
-		
-		writer.write("\n");
 	}
 
 }
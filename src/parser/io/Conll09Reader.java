@@ -1,5 +1,6 @@
 package parser.io;
 
+import java.io.BufferedReader;
 import java.io.IOException;
 import java.util.ArrayList;
 
@@ -15,7 +16,7 @@ public class Conll09Reader extends DependencyReader {
 	}
 	
 	@Override
-	public DependencyInstance nextInstance() throws IOException {
+	DependencyInstance readInstance(BufferedReader reader) throws IOException {
 		
 	    ArrayList<String[]> lstLines = new ArrayList<String[]>();
 
@@ -93,7 +94,7 @@ public class Conll09Reader extends DependencyReader {
 	    	cpos[i] = parts[5];	
 	    	
 	    	if (!parts[7].equals("_")) feats[i] = parts[7].split("\\|");
-	    	heads[i] = Integer.parseInt(parts[8]);
+	    	heads[i] = parts[8].equals("_") ? -1 : Integer.parseInt(parts[8]);
 	    	deprels[i] = parts[10];
 
 	    }
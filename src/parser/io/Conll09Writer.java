@@ -1,7 +1,5 @@
 package parser.io;
 
-import java.io.IOException;
-
 import parser.DependencyInstance;
 import parser.DependencyPipe;
 import parser.Options;
@@ -12,15 +10,11 @@ public class Conll09Writer extends DependencyWriter {
 	public Conll09Writer(Options options, DependencyPipe pipe) {
 		this.options = options;
 		this.labels = pipe.types;
+		this.isLabeled = options.learnLabel;
 	}
 	
 	@Override
-	public void writeInstance(DependencyInstance inst) throws IOException {
-		
-		if (first) 
-			first = false;
-		else
-			writer.write("\n");
+	public void format(DependencyInstance inst, StringBuilder out) {
 		
 		String[] forms = inst.forms;
 		String[] lemmas = inst.lemmas;
@@ -52,19 +46,19 @@ public class Conll09Writer extends DependencyWriter {
 	    // 1   这  这  这  DT  DT  _   _   6   4   DMOD    ADV _   _   _   _   _   _
 		
 		for (int i = 1, N = inst.length; i < N; ++i) {
-			writer.write(i + "\t");
-			writer.write(forms[i] + "\t");
-			writer.write((lemmas != null && lemmas[i] != "" ? inst.lemmas[i] : "_") + "\t");
-			writer.write((lemmas != null && lemmas[i] != "" ? inst.lemmas[i] : "_") + "\t");
-			writer.write(pos[i] + "\t");
-            writer.write(pos[i] + "\t");
-			writer.write("_\t");
-			writer.write("_\t");
-			writer.write(heads[i] + "\t");
-			writer.write("_\t");
-			writer.write((isLabeled ? labels[labelids[i]] : "_"));
+			out.append(i).append('\t');
+			out.append(forms[i]).append('\t');
+			out.append(lemmas != null && lemmas[i] != "" ? inst.lemmas[i] : "_").append('\t');
+			out.append(lemmas != null && lemmas[i] != "" ? inst.lemmas[i] : "_").append('\t');
+			out.append(pos[i]).append('\t');
+            out.append(pos[i]).append('\t');
+			out.append("_\t");
+			out.append("_\t");
+			out.append(heads[i]).append('\t');
+			out.append("_\t");
+			out.append(isLabeled ? labels[labelids[i]] : "_");
 			
-			writer.write("\n");
+			out.append('\n');
 		}
 	}
 
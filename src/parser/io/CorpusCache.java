@@ -0,0 +1,284 @@
+package parser.io;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32;
+
+import parser.DependencyInstance;
+import parser.DependencyInstance.SpecialPos;
+import parser.DependencyPipe;
+import parser.Options;
+import utils.DictionarySet;
+
+/***
+ * Binary cache of a training corpus: the dictionaries of the pipe and the
+ * ids of every sentence, written by a first run and read by the next runs
+ * on the same file instead of parsing it again. The cache of a corpus is
+ * a file of the cache directory named after a hash of the corpus and of the
+ * options the ids depend on, so changing either makes a new cache.
+ *
+ * Layout: magic, version, key, length and content of the dictionaries,
+ * number of sentences, then every sentence as its length in bytes followed
+ * by its arrays.
+ */
+public class CorpusCache {
+
+	static final int MAGIC = 0x52424743;		// "RBGC"
+	static final int VERSION = 1;
+	static final int WINDOW = 1 << 30;			// bytes mapped at a time
+
+	static final int HAS_LEMMAS = 1, HAS_WORD_VECTORS = 2;
+
+	String key;
+	File file;
+
+	public CorpusCache(Options options, String corpusFile) throws IOException
+	{
+		key = key(options, corpusFile);
+		file = new File(options.corpusCacheDir,
+				new File(corpusFile).getName() + "." + key + ".corpus");
+	}
+
+	/***
+	 * Hash of the content of the corpus and of the options that change the
+	 * sentences read or their ids. The path is part of it since the language
+	 * of the corpus is found from its path.
+	 */
+	static String key(Options options, String corpusFile) throws IOException
+	{
+		CRC32 crc = new CRC32();
+		FileInputStream in = new FileInputStream(corpusFile);
+		try {
+			byte[] buf = new byte[1 << 20];
+			for (int len = in.read(buf); len >= 0; len = in.read(buf))
+				crc.update(buf, 0, len);
+		} finally {
+			in.close();
+		}
+
+		String desc = VERSION + "|" + new File(corpusFile).getAbsolutePath()
+				+ "|" + new File(corpusFile).length() + "|" + crc.getValue()
+				+ "|" + options.format + "|" + options.maxNumSent + "|" + options.unimapFile
+				+ "|" + options.wordVectorFile;
+		try {
+			byte[] digest = MessageDigest.getInstance("MD5").digest(desc.getBytes("UTF-8"));
+			StringBuilder sb = new StringBuilder();
+			for (int i = 0; i < 8; ++i)
+				sb.append(String.format("%02x", digest[i]));
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	public boolean exists()
+	{
+		return file.exists();
+	}
+
+	public String getPath()
+	{
+		return file.getPath();
+	}
+
+	/***
+	 * Writes the dictionaries of the pipe and the ids of its instances. The
+	 * cache is written to a temporary file first, so that concurrent runs
+	 * never read a partial cache.
+	 */
+	public void write(DependencyPipe pipe, DependencyInstance[] insts) throws IOException
+	{
+		long start = System.currentTimeMillis();
+		File parent = file.getAbsoluteFile().getParentFile();
+		parent.mkdirs();
+		File tmp = File.createTempFile(file.getName(), ".tmp", parent);
+
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(tmp), 1 << 20));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeUTF(key);
+
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream dict = new DataOutputStream(bytes);
+			pipe.dictionaries.write(dict);
+			dict.close();
+			out.writeInt(bytes.size());
+			bytes.writeTo(out);
+
+			out.writeInt(insts.length);
+			for (DependencyInstance inst : insts)
+				writeInstance(out, inst);
+		} finally {
+			out.close();
+		}
+
+		if (!tmp.renameTo(file)) {
+			tmp.delete();
+			throw new IOException("Cannot write corpus cache " + file);
+		}
+		System.out.printf("Wrote corpus cache %s [%d ms]%n", file,
+				System.currentTimeMillis() - start);
+	}
+
+	private static void writeInstance(DataOutputStream out, DependencyInstance inst)
+			throws IOException
+	{
+		int n = inst.length;
+		int flags = (inst.lemmaids != null ? HAS_LEMMAS : 0)
+				| (inst.wordVecIds != null ? HAS_WORD_VECTORS : 0);
+
+		int size = 4 + 1 + 5 * 4 * n + n;
+		if (inst.lemmaids != null) size += 4 * n;
+		if (inst.wordVecIds != null) size += 4 * n;
+		for (int i = 0; i < n; ++i)
+			size += 4 + (inst.featids[i] != null ? 4 * inst.featids[i].length : 0);
+
+		out.writeInt(size);
+		out.writeInt(n);
+		out.writeByte(flags);
+		writeInts(out, inst.heads);
+		writeInts(out, inst.formids);
+		writeInts(out, inst.postagids);
+		writeInts(out, inst.cpostagids);
+		writeInts(out, inst.deplbids);
+		if (inst.lemmaids != null) writeInts(out, inst.lemmaids);
+		if (inst.wordVecIds != null) writeInts(out, inst.wordVecIds);
+		for (int i = 0; i < n; ++i)
+			out.writeByte(inst.specialPos[i].ordinal());
+		for (int i = 0; i < n; ++i) {
+			int[] feats = inst.featids[i];
+			out.writeInt(feats == null ? -1 : feats.length);
+			if (feats != null) writeInts(out, feats);
+		}
+	}
+
+	private static void writeInts(DataOutputStream out, int[] a) throws IOException
+	{
+		for (int v : a) out.writeInt(v);
+	}
+
+	/***
+	 * Sets the dictionaries of the pipe and returns the sentences of the
+	 * cache, with their ids but without their strings. Sentences that had
+	 * lemmas have an array of null lemmas, so that the features testing for
+	 * lemmas are the same as for the corpus.
+	 */
+	public DependencyInstance[] read(DependencyPipe pipe) throws IOException
+	{
+		long start = System.currentTimeMillis();
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			Window in = new Window(raf.getChannel());
+			in.ensure(12);
+			if (in.buf.getInt() != MAGIC || in.buf.getInt() != VERSION)
+				throw new IOException(file + " is not a corpus cache of this version");
+			in.ensure(2);
+			byte[] keyBytes = new byte[in.buf.getShort() & 0xffff];
+			in.ensure(keyBytes.length + 4);
+			in.buf.get(keyBytes);
+			if (!new String(keyBytes, "UTF-8").equals(key))
+				throw new IOException(file + " is the cache of another corpus");
+
+			byte[] dict = new byte[in.buf.getInt()];
+			in.ensure(dict.length + 4);
+			in.buf.get(dict);
+			pipe.dictionaries = new DictionarySet(new DataInputStream(
+					new ByteArrayInputStream(dict)));
+
+			DependencyInstance[] insts = new DependencyInstance[in.buf.getInt()];
+			for (int k = 0; k < insts.length; ++k) {
+				in.ensure(4);
+				in.ensure(in.buf.getInt());
+				insts[k] = readInstance(in.buf);
+			}
+			System.out.printf("Read corpus cache %s: %d sentences [%d ms]%n", file,
+					insts.length, System.currentTimeMillis() - start);
+			return insts;
+		} finally {
+			raf.close();
+		}
+	}
+
+	private static DependencyInstance readInstance(ByteBuffer buf)
+	{
+		int n = buf.getInt();
+		int flags = buf.get();
+		DependencyInstance inst = new DependencyInstance(n);
+		inst.heads = readInts(buf, n);
+		inst.formids = readInts(buf, n);
+		inst.postagids = readInts(buf, n);
+		inst.cpostagids = readInts(buf, n);
+		inst.deplbids = readInts(buf, n);
+		if ((flags & HAS_LEMMAS) != 0) {
+			inst.lemmaids = readInts(buf, n);
+			inst.lemmas = new String[n];
+		}
+		if ((flags & HAS_WORD_VECTORS) != 0)
+			inst.wordVecIds = readInts(buf, n);
+
+		SpecialPos[] values = SpecialPos.values();
+		inst.specialPos = new SpecialPos[n];
+		for (int i = 0; i < n; ++i)
+			inst.specialPos[i] = values[buf.get()];
+		inst.featids = new int[n][];
+		for (int i = 0; i < n; ++i) {
+			int len = buf.getInt();
+			if (len >= 0) inst.featids[i] = readInts(buf, len);
+		}
+		return inst;
+	}
+
+	private static int[] readInts(ByteBuffer buf, int n)
+	{
+		int[] a = new int[n];
+		buf.asIntBuffer().get(a);
+		buf.position(buf.position() + 4 * n);
+		return a;
+	}
+
+	/***
+	 * A read-only mapping of part of the file, moved forward when the next
+	 * record does not fit in it, since a mapping is limited to 2GB.
+	 */
+	static class Window {
+		FileChannel channel;
+		long base;
+		MappedByteBuffer buf;
+
+		Window(FileChannel channel) throws IOException
+		{
+			this.channel = channel;
+			map(0);
+		}
+
+		void map(long pos) throws IOException
+		{
+			base = pos;
+			buf = channel.map(FileChannel.MapMode.READ_ONLY, pos,
+					Math.min(WINDOW, channel.size() - pos));
+		}
+
+		void ensure(int n) throws IOException
+		{
+			if (buf.remaining() >= n) return;
+			map(base + buf.position());
+			if (buf.remaining() < n)
+				throw new IOException("Truncated corpus cache");
+		}
+	}
+}
@@ -4,6 +4,7 @@ package parser.io;
 import java.io.BufferedReader;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 
 import parser.DependencyInstance;
@@ -29,16 +30,43 @@ public abstract class DependencyReader {
 		}
 	}
 	
-	public abstract DependencyInstance nextInstance() throws IOException;
+	MappedCorpusReader mappedReader;
+	
+	/***
+	 * Reads the next sentence from a reader positioned at its first line,
+	 * or returns null at the end of the corpus. It is called by several
+	 * threads at once when the file is read in parallel, so it only reads
+	 * the state set by startReading.
+	 */
+	abstract DependencyInstance readInstance(BufferedReader reader) throws IOException;
 	public abstract boolean IsLabeledDependencyFile(String file) throws IOException;
 	
+	public DependencyInstance nextInstance() throws IOException {
+		return mappedReader != null ? mappedReader.nextInstance() : readInstance(reader);
+	}
+	
 	public boolean startReading(String file) throws IOException {
 		isLabeled = IsLabeledDependencyFile(file);
-		reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF8"));
+		if (options.numReadThreads > 1)
+			mappedReader = new MappedCorpusReader(this, file, options.numReadThreads);
+		else
+			reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF8"));
 		return isLabeled;
 	}
 	
-	public void close() throws IOException { if (reader != null) reader.close(); }
+	/***
+	 * Starts reading unannotated sentences from a stream, such as stdin:
+	 * heads may be "_" and labels are not read.
+	 */
+	public void startReading(InputStream in) throws IOException {
+		isLabeled = false;
+		reader = new BufferedReader(new InputStreamReader(in, "UTF8"));
+	}
+	
+	public void close() throws IOException {
+		if (reader != null) reader.close();
+		if (mappedReader != null) mappedReader.close();
+	}
 
     
 }
@@ -1,19 +1,66 @@
 package parser.io;
 
-import java.io.BufferedWriter;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 import parser.DependencyInstance;
 import parser.DependencyPipe;
 import parser.Options;
 
+/***
+ * Writer of parsed sentences. Sentences are formatted and written in UTF-8
+ * on a thread of the writer, fed by a bounded queue, so that formatting and
+ * disk writes overlap with decoding. Text is encoded into one reused buffer
+ * and written to the file when BUFFER_SIZE bytes are ready.
+ */
 public abstract class DependencyWriter {
-	BufferedWriter writer;
+
+	static final int QUEUE_SIZE = 1024;			// sentences waiting to be written
+	static final int BUFFER_SIZE = 1 << 20;		// bytes per write
+
+	// a sentence, its position in the output and what to run once written
+	static class Item {
+		int index;
+		DependencyInstance inst;
+		Runnable written;
+
+		Item(int index, DependencyInstance inst, Runnable written) {
+			this.index = index;
+			this.inst = inst;
+			this.written = written;
+		}
+	}
+	static final Item END = new Item(-1, null, null);
+
 	Options options;
 	String[] labels;
 	boolean first, isLabeled;
-	
+	boolean blankLineAfterEach;	// end every sentence with a blank line, the last one too
+
+	WritableByteChannel channel;
+	boolean flushWhenIdle;
+	BlockingQueue<Item> queue;
+	Thread thread;
+	volatile IOException error;
+	int numSubmitted;
+
+	// used by the writer thread only
+	StringBuilder text = new StringBuilder();
+	CharsetEncoder encoder;
+	ByteBuffer bytes;
+
 	public static DependencyWriter createDependencyWriter(Options options, DependencyPipe pipe) {
 		String format = options.format;
 		if (format.equalsIgnoreCase("CONLL06") || format.equalsIgnoreCase("CONLL-06")) {
@@ -27,17 +74,190 @@ public abstract class DependencyWriter {
 			return new Conll06Writer(options, pipe);
 		}
 	}
-	
-	public abstract void writeInstance(DependencyInstance inst) throws IOException;
-	
+
+	/***
+	 * Appends the lines of a sentence to out, without the blank line that
+	 * separates it from the next one. Called by the writer thread, in the
+	 * order of the output, or by callers that write the text themselves.
+	 */
+	public abstract void format(DependencyInstance inst, StringBuilder out);
+
 	public void startWriting(String file) throws IOException {
-		writer = new BufferedWriter(new FileWriter(file));
+		startWriting(new FileOutputStream(file).getChannel(), false);
+	}
+
+	/***
+	 * Starts writing to a stream, such as stdout. Unlike files, the output is
+	 * written as soon as the writer has no queued sentence left, and every
+	 * sentence ends with its blank line, so that readers of the stream get
+	 * every sentence without waiting.
+	 */
+	public void startWriting(OutputStream out) throws IOException {
+		startWriting(Channels.newChannel(out), true);
+	}
+
+	private void startWriting(WritableByteChannel channel, boolean flushWhenIdle) {
+		this.channel = channel;
+		this.flushWhenIdle = flushWhenIdle;
+		encoder = Charset.forName("UTF-8").newEncoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		bytes = ByteBuffer.allocate(BUFFER_SIZE);
 		first = true;
-		isLabeled = options.learnLabel;
+		numSubmitted = 0;
+
+		queue = new ArrayBlockingQueue<Item>(QUEUE_SIZE);
+		thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				writeQueue();
+			}
+		}, "dependency-writer");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/***
+	 * Queues the next sentence of the output. The sentence must not be
+	 * changed afterwards.
+	 */
+	public void writeInstance(DependencyInstance inst) throws IOException {
+		writeInstance(numSubmitted, inst);
 	}
-	
+
+	/***
+	 * Queues the next sentence of the output, and runs written on the writer
+	 * thread once the sentence is written or dropped after an error, e.g. to
+	 * let the caller read more input.
+	 */
+	public void writeInstance(DependencyInstance inst, Runnable written) throws IOException {
+		if (error != null) throw error;
+		++numSubmitted;
+		put(new Item(numSubmitted - 1, inst, written));
+	}
+
+	/***
+	 * Queues the sentence at position index of the output, counting from 0,
+	 * for callers that finish sentences out of order. Sentences are written
+	 * once all the ones before them are queued. Do not mix with
+	 * writeInstance(inst).
+	 */
+	public void writeInstance(int index, DependencyInstance inst) throws IOException {
+		if (error != null) throw error;
+		++numSubmitted;
+		put(new Item(index, inst, null));
+	}
+
+	private void put(Item item) {
+		try {
+			queue.put(item);
+		} catch (InterruptedException e) {
+			throw new RuntimeException("Interrupted while writing", e);
+		}
+	}
+
+	private void writeQueue() {
+		HashMap<Integer, Item> early = new HashMap<Integer, Item>();
+		int next = 0;
+		try {
+			while (true) {
+				Item item = queue.take();
+				if (item == END) break;
+				if (error != null) {	// keep draining so that writers never block
+					written(item);
+					continue;
+				}
+				try {
+					if (item.index != next) {
+						early.put(item.index, item);
+						continue;
+					}
+					write(item);
+					for (++next; early.containsKey(next); ++next)
+						write(early.remove(next));
+					if (flushWhenIdle && queue.isEmpty()) flush();
+				} catch (IOException e) {
+					error = e;
+				} catch (Throwable e) {
+					error = new IOException("Failed to write sentence " + next + " of the output", e);
+				}
+			}
+			if (error == null && !early.isEmpty())
+				error = new IOException("Sentence " + next + " of the output was never written");
+			if (error == null) flush();
+		} catch (InterruptedException e) {
+			error = new IOException("Writer interrupted", e);
+		} catch (IOException e) {
+			error = e;
+		} catch (Throwable e) {
+			error = new IOException("Writer failed", e);
+		}
+	}
+
+	private void write(Item item) throws IOException {
+		try {
+			write(item.inst);
+		} finally {
+			written(item);
+		}
+	}
+
+	private void written(Item item) {
+		if (item.written != null) item.written.run();
+	}
+
+	private void write(DependencyInstance inst) throws IOException {
+		text.setLength(0);
+		// streams end each sentence with its blank line, so that readers
+		// see it complete without waiting for the next one
+		if (blankLineAfterEach || flushWhenIdle) {
+			format(inst, text);
+			text.append('\n');
+		} else {
+			if (first)
+				first = false;
+			else
+				text.append('\n');
+			format(inst, text);
+		}
+		encode();
+	}
+
+	private void encode() throws IOException {
+		CharBuffer chars = CharBuffer.wrap(text);
+		while (true) {
+			CoderResult result = encoder.encode(chars, bytes, true);
+			if (result.isOverflow())
+				flush();
+			else
+				break;
+		}
+		encoder.reset();
+		if (bytes.position() >= BUFFER_SIZE / 2) flush();
+	}
+
+	private void flush() throws IOException {
+		bytes.flip();
+		while (bytes.hasRemaining())
+			channel.write(bytes);
+		bytes.clear();
+	}
+
+	/***
+	 * Writes the queued sentences and closes the file.
+	 */
 	public void close() throws IOException {
-		if (writer != null) writer.close();
+		if (thread == null) return;
+		put(END);
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			throw new RuntimeException("Interrupted while writing", e);
+		} finally {
+			thread = null;
+			channel.close();
+		}
+		if (error != null) throw error;
 	}
-	
+
 }
@@ -0,0 +1,170 @@
+package parser.io;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.StringReader;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import parser.DependencyInstance;
+
+/***
+ * Reads the sentences of a corpus file in parallel for a DependencyReader.
+ * The file is memory-mapped and cut into batches of about BATCH_SIZE bytes
+ * right after blank lines, found with a scan of the bytes. Batches are
+ * decoded and split into sentences by the reader on a pool of threads, and
+ * returned in the order of the file.
+ *
+ * The sentences are the ones of reading the file line by line, including
+ * the end of the corpus at the first empty sentence.
+ */
+class MappedCorpusReader {
+
+	static final int BATCH_SIZE = 256 << 10;
+	static final int SCAN_WINDOW = 64 << 10;
+	static final Charset UTF8 = Charset.forName("UTF-8");
+
+	static class Batch {
+		ArrayList<DependencyInstance> insts = new ArrayList<DependencyInstance>();
+		boolean last;		// the corpus ends in this batch
+	}
+
+	DependencyReader reader;
+	RandomAccessFile raf;
+	FileChannel channel;
+	long size, position;
+	int numThreads;
+
+	ExecutorService executorService;
+	LinkedList<Future<Batch>> pending = new LinkedList<Future<Batch>>();
+	Batch current;
+	int next;
+
+	MappedCorpusReader(DependencyReader reader, String file, int numThreads) throws IOException
+	{
+		this.reader = reader;
+		this.numThreads = numThreads;
+		raf = new RandomAccessFile(file, "r");
+		channel = raf.getChannel();
+		size = channel.size();
+		executorService = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r)
+			{
+				Thread t = new Thread(r, "corpus-reader");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		while (pending.size() < 2 * numThreads && submitBatch());
+	}
+
+	/***
+	 * Returns the next sentence, or null at the end of the corpus.
+	 */
+	DependencyInstance nextInstance() throws IOException
+	{
+		while (current == null || next == current.insts.size()) {
+			if (current != null && current.last || pending.isEmpty()) return null;
+			current = take(pending.removeFirst());
+			next = 0;
+			submitBatch();
+		}
+		return current.insts.get(next++);
+	}
+
+	private Batch take(Future<Batch> future) throws IOException
+	{
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			throw new RuntimeException("Corpus reading interrupted", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	private boolean submitBatch() throws IOException
+	{
+		if (position == size) return false;
+		final long from = position, to = findCut(from);
+		position = to;
+		pending.add(executorService.submit(new Callable<Batch>() {
+			@Override
+			public Batch call() throws IOException
+			{
+				return readBatch(from, to);
+			}
+		}));
+		return true;
+	}
+
+	/***
+	 * Returns the position of the first blank line at least BATCH_SIZE bytes
+	 * after from, just past its line break, or the end of the file.
+	 */
+	private long findCut(long from) throws IOException
+	{
+		long p = from + BATCH_SIZE;
+		if (p >= size) return size;
+
+		// the two bytes before p, to find blank lines starting before it
+		MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, p - 2, 2);
+		byte b2 = buf.get(0), b1 = buf.get(1);
+		for (long base = p; base < size; base += SCAN_WINDOW) {
+			int len = (int) Math.min(SCAN_WINDOW, size - base);
+			buf = channel.map(FileChannel.MapMode.READ_ONLY, base, len);
+			for (int i = 0; i < len; ++i) {
+				byte b = buf.get(i);
+				if (b == '\n' && (b1 == '\n' || b1 == '\r' && b2 == '\n'))
+					return base + i + 1;
+				b2 = b1;
+				b1 = b;
+			}
+		}
+		return size;
+	}
+
+	private Batch readBatch(long from, long to) throws IOException
+	{
+		// decoding an array is much faster than decoding the mapped buffer
+		byte[] bytes = new byte[(int) (to - from)];
+		channel.map(FileChannel.MapMode.READ_ONLY, from, bytes.length).get(bytes);
+		BufferedReader in = new BufferedReader(new StringReader(new String(bytes, UTF8)));
+
+		Batch batch = new Batch();
+		while (true) {
+			in.mark(1);
+			if (in.read() < 0) break;
+			in.reset();
+			DependencyInstance inst = reader.readInstance(in);
+			if (inst == null) {
+				batch.last = true;
+				break;
+			}
+			batch.insts.add(inst);
+		}
+		batch.last |= to == size;
+		return batch;
+	}
+
+	void close() throws IOException
+	{
+		executorService.shutdownNow();
+		raf.close();
+	}
+}
@@ -0,0 +1,82 @@
+package parser.mixing;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.BitSet;
+
+import parser.Parameters;
+
+/***
+ * A connection between the coordinator and one worker. Weight blocks are
+ * exchanged as sparse lists of (index, weight, accumulator) entries, in the
+ * block order of Parameters.
+ */
+class MixingChannel {
+
+	Socket socket;
+	DataInputStream in;
+	DataOutputStream out;
+
+	MixingChannel(Socket socket) throws IOException
+	{
+		this.socket = socket;
+		socket.setTcpNoDelay(true);
+		in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+		out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+	}
+
+	void writeEntries(Parameters params, int b, BitSet indices) throws IOException
+	{
+		double[] values = params.blockValues(b);
+		out.writeInt(indices.cardinality());
+		for (int x = indices.nextSetBit(0); x >= 0; x = indices.nextSetBit(x+1)) {
+			out.writeInt(x);
+			out.writeDouble(values[x]);
+			out.writeDouble(params.getTotal(b, x));
+		}
+	}
+
+	/***
+	 * Reads a list of entries written by writeEntries and stores them in
+	 * block b of the parameters.
+	 */
+	void readEntries(Parameters params, int b) throws IOException
+	{
+		double[] values = params.blockValues(b);
+		for (int i = 0, n = in.readInt(); i < n; ++i) {
+			int x = in.readInt();
+			values[x] = in.readDouble();
+			params.setTotal(b, x, in.readDouble());
+		}
+	}
+
+	/***
+	 * Sends every non-zero entry of the parameters.
+	 */
+	void writeState(Parameters params) throws IOException
+	{
+		for (int b = 0, B = params.numBlocks(); b < B; ++b)
+			writeEntries(params, b, params.blockSupport(b));
+		out.flush();
+	}
+
+	void readState(Parameters params) throws IOException
+	{
+		for (int b = 0, B = params.numBlocks(); b < B; ++b) {
+			params.clearBlock(b);
+			readEntries(params, b);
+		}
+	}
+
+	void close()
+	{
+		try {
+			socket.close();
+		} catch (IOException e) {
+		}
+	}
+}
@@ -0,0 +1,156 @@
+package parser.mixing;
+
+import gnu.trove.iterator.TIntDoubleIterator;
+import gnu.trove.map.hash.TIntDoubleHashMap;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.BitSet;
+
+import parser.Parameters;
+
+/***
+ * Coordinator of multi-process parameter mixing. Worker processes train on
+ * shards of the corpus and send the entries they have updated since the last
+ * mix; the coordinator holds the mixed parameters, merges the updates by
+ * weighted averaging and sends the merged entries back. The coordinator does
+ * not train itself, so its parameters are always the last mixed ones.
+ */
+public class ParameterCoordinator {
+
+	MixingChannel[] workers;
+
+	/***
+	 * Waits until numWorkers workers have connected to the given port.
+	 * Workers must have read the same corpus and built the same feature space.
+	 * They all mix every period sentences of their shards.
+	 */
+	public ParameterCoordinator(int port, int numWorkers, int period, int numSentences,
+			Parameters params) throws IOException
+	{
+		ServerSocket server = new ServerSocket();
+		server.setReuseAddress(true);
+		server.bind(new InetSocketAddress(port));
+		System.out.printf("Waiting for %d workers on port %d ...%n", numWorkers, port);
+
+		workers = new MixingChannel[numWorkers];
+		try {
+			for (int k = 0; k < numWorkers; ++k) {
+				MixingChannel worker = new MixingChannel(server.accept());
+				workers[k] = worker;
+				int n = worker.in.readInt();
+				int size = worker.in.readInt();
+				int sizeL = worker.in.readInt();
+				if (n != numSentences || size != params.size || sizeL != params.sizeL) {
+					close();
+					throw new RuntimeException(String.format(
+							"Worker %s has %d sentences and %d/%d features, expected %d and %d/%d",
+							worker.socket.getRemoteSocketAddress(), n, size, sizeL,
+							numSentences, params.size, params.sizeL));
+				}
+				worker.out.writeInt(k);
+				worker.out.writeInt(numWorkers);
+				worker.out.writeInt(period);
+				worker.out.flush();
+				System.out.printf("  worker %d connected from %s%n", k,
+						worker.socket.getRemoteSocketAddress());
+			}
+		} finally {
+			server.close();
+		}
+	}
+
+	public int numWorkers()
+	{
+		return workers.length;
+	}
+
+	/***
+	 * Sends the current parameters to every worker, e.g. after the random
+	 * initialization of the tensor.
+	 */
+	public void sendState(Parameters params) throws IOException
+	{
+		for (MixingChannel worker : workers)
+			worker.writeState(params);
+	}
+
+	/***
+	 * Receives the updates of one round from every worker and replaces the
+	 * parameters by the weighted average of the workers' parameters. Adds the
+	 * workers' number of correct heads, of tokens and of updated sentences to
+	 * counts and returns their loss.
+	 */
+	public double mix(Parameters params, boolean byErrors, int[] counts) throws IOException
+	{
+		int K = workers.length;
+		double loss = 0;
+		double[] weights = new double[K];
+		double numErrors = 0;
+		for (int k = 0; k < K; ++k) {
+			MixingChannel worker = workers[k];
+			loss += worker.in.readDouble();
+			counts[0] += worker.in.readInt();
+			counts[1] += worker.in.readInt();
+			weights[k] = worker.in.readInt();
+			numErrors += weights[k];
+		}
+		for (int k = 0; k < K; ++k)
+			weights[k] = byErrors && numErrors > 0 ? weights[k] / numErrors : 1.0 / K;
+
+		// workers send their whole message before reading the reply, so all
+		// of them are read before anything is written back
+		int B = params.numBlocks();
+		TIntDoubleHashMap[] dValues = new TIntDoubleHashMap[B];
+		TIntDoubleHashMap[] dTotals = new TIntDoubleHashMap[B];
+		for (int b = 0; b < B; ++b) {
+			dValues[b] = new TIntDoubleHashMap();
+			dTotals[b] = new TIntDoubleHashMap();
+		}
+		for (int k = 0; k < K; ++k) {
+			MixingChannel worker = workers[k];
+			for (int b = 0; b < B; ++b) {
+				double[] values = params.blockValues(b);
+				for (int i = 0, n = worker.in.readInt(); i < n; ++i) {
+					int x = worker.in.readInt();
+					// entries a worker has not updated keep the mixed value,
+					// so only the differences need to be averaged
+					double dv = weights[k] * (worker.in.readDouble() - values[x]);
+					double dt = weights[k] * (worker.in.readDouble() - params.getTotal(b, x));
+					dValues[b].adjustOrPutValue(x, dv, dv);
+					dTotals[b].adjustOrPutValue(x, dt, dt);
+				}
+			}
+		}
+
+		BitSet[] merged = new BitSet[B];
+		for (int b = 0; b < B; ++b) {
+			double[] values = params.blockValues(b);
+			merged[b] = new BitSet(values.length);
+			for (TIntDoubleIterator it = dValues[b].iterator(); it.hasNext(); ) {
+				it.advance();
+				values[it.key()] += it.value();
+				merged[b].set(it.key());
+			}
+			for (TIntDoubleIterator it = dTotals[b].iterator(); it.hasNext(); ) {
+				it.advance();
+				params.setTotal(b, it.key(), params.getTotal(b, it.key()) + it.value());
+			}
+		}
+
+		for (MixingChannel worker : workers) {
+			for (int b = 0; b < B; ++b)
+				worker.writeEntries(params, b, merged[b]);
+			worker.out.flush();
+		}
+
+		return loss;
+	}
+
+	public void close()
+	{
+		for (MixingChannel worker : workers)
+			if (worker != null) worker.close();
+	}
+}
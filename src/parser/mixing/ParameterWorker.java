@@ -0,0 +1,107 @@
+package parser.mixing;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.Socket;
+
+import parser.Parameters;
+
+/***
+ * Worker of multi-process parameter mixing. Trains on its shard of the corpus
+ * and, at the end of every round, sends the entries it has updated to the
+ * coordinator and replaces them by the mixed values it gets back.
+ */
+public class ParameterWorker {
+
+	static final int CONNECT_ATTEMPTS = 120;
+	static final int CONNECT_DELAY = 500;	// ms between attempts
+
+	MixingChannel coordinator;
+	int id, numWorkers, period;
+
+	/***
+	 * Connects to the coordinator at host:port, retrying for a while since
+	 * workers are usually started together with the coordinator.
+	 */
+	public ParameterWorker(String address, int numSentences, Parameters params)
+			throws IOException
+	{
+		int p = address.lastIndexOf(':');
+		String host = p < 0 ? "localhost" : address.substring(0, p);
+		int port = Integer.parseInt(address.substring(p + 1));
+
+		Socket socket = null;
+		for (int attempt = 1; socket == null; ++attempt) {
+			try {
+				socket = new Socket(host, port);
+			} catch (ConnectException e) {
+				if (attempt == CONNECT_ATTEMPTS) throw e;
+				try {
+					Thread.sleep(CONNECT_DELAY);
+				} catch (InterruptedException e1) {
+					throw new RuntimeException("Interrupted while connecting", e1);
+				}
+			}
+		}
+
+		coordinator = new MixingChannel(socket);
+		coordinator.out.writeInt(numSentences);
+		coordinator.out.writeInt(params.size);
+		coordinator.out.writeInt(params.sizeL);
+		coordinator.out.flush();
+		id = coordinator.in.readInt();
+		numWorkers = coordinator.in.readInt();
+		period = coordinator.in.readInt();
+		System.out.printf("Connected to coordinator %s:%d as worker %d of %d%n",
+				host, port, id, numWorkers);
+	}
+
+	public int getId()
+	{
+		return id;
+	}
+
+	public int numWorkers()
+	{
+		return numWorkers;
+	}
+
+	/***
+	 * Number of shard sentences between mixes, as set on the coordinator.
+	 */
+	public int getPeriod()
+	{
+		return period;
+	}
+
+	public void receiveState(Parameters params) throws IOException
+	{
+		coordinator.readState(params);
+	}
+
+	/***
+	 * Sends the statistics and the updated entries of this round, then waits
+	 * for the mixed values. counts holds the number of correct heads, of
+	 * tokens and of updated sentences, as in DependencyParser.trainInstance.
+	 */
+	public void mix(Parameters params, double loss, int[] counts) throws IOException
+	{
+		coordinator.out.writeDouble(loss);
+		coordinator.out.writeInt(counts[0]);
+		coordinator.out.writeInt(counts[1]);
+		coordinator.out.writeInt(counts[2]);
+		int B = params.numBlocks();
+		for (int b = 0; b < B; ++b)
+			coordinator.writeEntries(params, b, params.blockUpdates(b));
+		coordinator.out.flush();
+		params.clearUpdates();
+
+		for (int b = 0; b < B; ++b)
+			coordinator.readEntries(params, b);
+	}
+
+	public void close()
+	{
+		coordinator.close();
+	}
+}
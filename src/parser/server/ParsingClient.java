@@ -0,0 +1,197 @@
+package parser.server;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/***
+ * Client of ParsingServer on the loopback interface. Its main method is a
+ * load test: several clients send the sentences of a CoNLL file in requests
+ * of a few sentences each, and the throughput and the latency of the
+ * requests are printed.
+ *
+ * Usage: ParsingClient port:PORT file:FILE [clients:N] [batch:K] [repeat:R]
+ */
+public class ParsingClient {
+
+	Socket socket;
+	BufferedReader in;
+	Writer out;
+	double serverTime;
+
+	public ParsingClient(int port) throws IOException
+	{
+		socket = new Socket(InetAddress.getLoopbackAddress(), port);
+		socket.setTcpNoDelay(true);
+		in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF8"));
+		out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF8"));
+	}
+
+	/***
+	 * Sends sentences, each in CoNLL lines without the blank line after it,
+	 * and returns the parsed sentences in the same way.
+	 */
+	public List<String> parse(List<String> sentences) throws IOException
+	{
+		for (String sentence : sentences) {
+			out.write(sentence);
+			out.write("\n\n");
+		}
+		out.write("\n");
+		out.flush();
+
+		List<String> parses = new ArrayList<String>();
+		StringBuilder sentence = new StringBuilder();
+		while (true) {
+			String line = in.readLine();
+			if (line == null)
+				throw new IOException("Connection closed by the server");
+			if (line.startsWith(ParsingServer.ERROR_PREFIX))
+				throw new IOException(line.substring(ParsingServer.ERROR_PREFIX.length()));
+			if (line.startsWith(ParsingServer.STATUS_PREFIX)) {
+				String[] parts = line.split(" ");
+				serverTime = Double.parseDouble(parts[parts.length - 2]);
+				in.readLine();
+				break;
+			}
+			if (line.length() > 0) {
+				if (sentence.length() > 0) sentence.append('\n');
+				sentence.append(line);
+			} else if (sentence.length() > 0) {
+				parses.add(sentence.toString());
+				sentence.setLength(0);
+			}
+		}
+		if (sentence.length() > 0) parses.add(sentence.toString());
+		return parses;
+	}
+
+	/***
+	 * Time the server took for the last request, in ms.
+	 */
+	public double getServerTime()
+	{
+		return serverTime;
+	}
+
+	public void close() throws IOException
+	{
+		socket.close();
+	}
+
+	static List<String> readSentences(String file) throws IOException
+	{
+		BufferedReader reader = new BufferedReader(
+				new InputStreamReader(new FileInputStream(file), "UTF8"));
+		List<String> sentences = new ArrayList<String>();
+		StringBuilder sentence = new StringBuilder();
+		for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+			if (line.trim().length() > 0) {
+				if (sentence.length() > 0) sentence.append('\n');
+				sentence.append(line);
+			} else if (sentence.length() > 0) {
+				sentences.add(sentence.toString());
+				sentence.setLength(0);
+			}
+		}
+		if (sentence.length() > 0) sentences.add(sentence.toString());
+		reader.close();
+		return sentences;
+	}
+
+	public static void main(String[] args) throws Exception
+	{
+		int port = 0, numClients = 1, batch = 1, repeat = 1;
+		String file = null;
+		for (String arg : args) {
+			if (arg.startsWith("port:"))
+				port = Integer.parseInt(arg.split(":")[1]);
+			else if (arg.startsWith("file:"))
+				file = arg.split(":")[1];
+			else if (arg.startsWith("clients:"))
+				numClients = Integer.parseInt(arg.split(":")[1]);
+			else if (arg.startsWith("batch:"))
+				batch = Integer.parseInt(arg.split(":")[1]);
+			else if (arg.startsWith("repeat:"))
+				repeat = Integer.parseInt(arg.split(":")[1]);
+		}
+		if (port == 0 || file == null) {
+			System.out.println("Usage: ParsingClient port:PORT file:FILE [clients:N] [batch:K] [repeat:R]");
+			return;
+		}
+
+		final List<String> sentences = readSentences(file);
+		final List<List<String>> requests = new ArrayList<List<String>>();
+		for (int r = 0; r < repeat; ++r)
+			for (int i = 0; i < sentences.size(); i += batch)
+				requests.add(sentences.subList(i, Math.min(sentences.size(), i + batch)));
+
+		// clients take the next request until there is none left
+		final AtomicInteger next = new AtomicInteger();
+		final double[] latencies = new double[requests.size()];
+		final double[] serverTimes = new double[requests.size()];
+		final Exception[] error = new Exception[1];
+		final int serverPort = port;
+		Thread[] clients = new Thread[numClients];
+		long start = System.nanoTime();
+		for (int c = 0; c < numClients; ++c) {
+			clients[c] = new Thread(new Runnable() {
+				@Override
+				public void run()
+				{
+					try {
+						ParsingClient client = new ParsingClient(serverPort);
+						for (int k = next.getAndIncrement(); k < requests.size();
+								k = next.getAndIncrement()) {
+							long t = System.nanoTime();
+							List<String> parses = client.parse(requests.get(k));
+							latencies[k] = (System.nanoTime() - t) / 1e6;
+							serverTimes[k] = client.getServerTime();
+							if (parses.size() != requests.get(k).size())
+								throw new IOException(String.format("Request %d: %d sentences sent, %d parsed",
+										k, requests.get(k).size(), parses.size()));
+						}
+						client.close();
+					} catch (Exception e) {
+						error[0] = e;
+					}
+				}
+			});
+			clients[c].start();
+		}
+		for (Thread client : clients)
+			client.join();
+		double seconds = (System.nanoTime() - start) / 1e9;
+		if (error[0] != null) throw error[0];
+
+		int numSentences = sentences.size() * repeat;
+		double[] sorted = latencies.clone();
+		Arrays.sort(sorted);
+		double sumLatency = 0, sumServer = 0;
+		for (int k = 0; k < latencies.length; ++k) {
+			sumLatency += latencies[k];
+			sumServer += serverTimes[k];
+		}
+		System.out.printf("%d requests, %d sentences, %d clients in %.2fs: %.1f sentences/s%n",
+				requests.size(), numSentences, numClients, seconds, numSentences / seconds);
+		System.out.printf("Latency (ms): mean %.2f  p50 %.2f  p90 %.2f  p99 %.2f  max %.2f%n",
+				sumLatency / latencies.length, percentile(sorted, 0.5), percentile(sorted, 0.9),
+				percentile(sorted, 0.99), sorted[sorted.length - 1]);
+		System.out.printf("Server time (ms): mean %.2f%n", sumServer / serverTimes.length);
+	}
+
+	static double percentile(double[] sorted, double p)
+	{
+		return sorted[Math.min(sorted.length - 1, (int) (p * sorted.length))];
+	}
+}
@@ -0,0 +1,222 @@
+package parser.server;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import parser.DecodingPool;
+import parser.DependencyInstance;
+import parser.DependencyParser;
+import parser.DependencyPipe;
+import parser.Options;
+import parser.io.DependencyReader;
+import parser.io.DependencyWriter;
+
+/***
+ * Server that parses sentences for local clients, so that the model is
+ * loaded once for many jobs. It listens on a port of the loopback interface
+ * and serves every connection on its own thread, up to MAX_CONNECTIONS at a
+ * time; the sentences of all connections are decoded by one DecodingPool,
+ * so concurrent requests share its decoders and keep them busy.
+ *
+ * A request is a sequence of sentences in the format of the model, where
+ * heads and labels may be "_", each followed by a blank line, and ended by
+ * one more blank line. The response is the parsed sentences in the same
+ * format followed by the line "# sentences N time T ms" and a blank line,
+ * where T is the time from the end of the request to its response. A client
+ * can send several requests on one connection; an empty request or the end
+ * of the input closes it. A malformed request, a request of more than
+ * MAX_REQUEST_SENTENCES sentences, or a connection over the limit gets the
+ * line "# error ..." and the connection is closed.
+ */
+public class ParsingServer {
+
+	public static final String STATUS_PREFIX = "# sentences ";
+	public static final String ERROR_PREFIX = "# error ";
+
+	static final int MAX_CONNECTIONS = 64;			// connections served at a time
+	static final int MAX_REQUEST_SENTENCES = 10000;	// sentences held per request
+
+	Options options;
+	DependencyPipe pipe;
+	DecodingPool pool;
+	ServerSocket serverSocket;
+	ExecutorService connections;
+	Semaphore openConnections = new Semaphore(MAX_CONNECTIONS);
+	Set<Socket> sockets = ConcurrentHashMap.newKeySet();	// connections being served
+	AtomicInteger numConnections = new AtomicInteger();
+
+	/***
+	 * Binds the server to port on the loopback interface, or to a free port
+	 * if port is 0, with options.numTestThreads decoders.
+	 */
+	public ParsingServer(DependencyParser parser, int port) throws IOException
+	{
+		options = parser.getOptions();
+		pipe = parser.getPipe();
+		pool = new DecodingPool(parser, options, Math.max(1, options.numTestThreads));
+		serverSocket = new ServerSocket();
+		serverSocket.setReuseAddress(true);
+		serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+		connections = Executors.newFixedThreadPool(MAX_CONNECTIONS);
+	}
+
+	public int getPort()
+	{
+		return serverSocket.getLocalPort();
+	}
+
+	/***
+	 * Accepts connections until the server is closed.
+	 */
+	public void serve() throws IOException
+	{
+		System.out.printf("Parsing server listening on %s with %d decoders%n",
+				serverSocket.getLocalSocketAddress(), Math.max(1, options.numTestThreads));
+		try {
+			while (true) {
+				final Socket socket = serverSocket.accept();
+				if (!openConnections.tryAcquire()) {
+					reject(socket, "more than " + MAX_CONNECTIONS + " connections");
+					continue;
+				}
+				sockets.add(socket);
+				connections.execute(new Runnable() {
+					@Override
+					public void run()
+					{
+						try {
+							handle(socket);
+						} finally {
+							openConnections.release();
+						}
+					}
+				});
+			}
+		} catch (SocketException e) {
+			if (!serverSocket.isClosed()) throw e;
+		} finally {
+			close();
+		}
+	}
+
+	void handle(Socket socket)
+	{
+		int id = numConnections.incrementAndGet();
+		int numRequests = 0, numSentences = 0;
+		Writer out = null;
+		try {
+			socket.setTcpNoDelay(true);
+			DependencyReader reader = DependencyReader.createDependencyReader(options);
+			reader.startReading(socket.getInputStream());
+			DependencyWriter writer = DependencyWriter.createDependencyWriter(options, pipe);
+			out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF8"));
+
+			while (true) {
+				List<DependencyInstance> request = new ArrayList<DependencyInstance>();
+				for (DependencyInstance inst = pipe.createInstance(reader); inst != null;
+						inst = pipe.createInstance(reader)) {
+					if (request.size() == MAX_REQUEST_SENTENCES)
+						throw new IOException("request of more than " + MAX_REQUEST_SENTENCES + " sentences");
+					request.add(inst);
+				}
+				if (request.isEmpty()) break;
+
+				long start = System.nanoTime();
+				List<Future<DependencyInstance>> results = new ArrayList<Future<DependencyInstance>>();
+				for (DependencyInstance inst : request)
+					results.add(pool.submit(inst, false));
+
+				StringBuilder text = new StringBuilder();
+				for (int i = 0; i < request.size(); ++i) {
+					DependencyInstance inst = request.get(i);
+					DependencyInstance predInst = pool.get(results.get(i));
+					inst.heads = predInst.heads;
+					inst.deplbids = predInst.deplbids;
+					writer.format(inst, text);
+					text.append('\n');
+				}
+				text.append(String.format("%s%d time %.2f ms%n%n", STATUS_PREFIX,
+						request.size(), (System.nanoTime() - start) / 1e6));
+				out.write(text.toString());
+				out.flush();
+
+				++numRequests;
+				numSentences += request.size();
+			}
+		} catch (Exception e) {
+			System.out.printf("Connection %d: %s%n", id, e);
+			if (out != null) {
+				try {
+					out.write(ERROR_PREFIX + e + "\n\n");
+					out.flush();
+				} catch (IOException e1) {
+					// the client is gone
+				}
+			}
+		} finally {
+			sockets.remove(socket);
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// nothing left to do with this connection
+			}
+		}
+		System.out.printf("Connection %d closed after %d requests, %d sentences%n",
+				id, numRequests, numSentences);
+	}
+
+	/***
+	 * Answers a connection that is not served with an error line.
+	 */
+	void reject(Socket socket, String reason)
+	{
+		System.out.printf("Rejected connection: %s%n", reason);
+		try {
+			Writer out = new OutputStreamWriter(socket.getOutputStream(), "UTF8");
+			out.write(ERROR_PREFIX + reason + "\n\n");
+			out.flush();
+		} catch (IOException e) {
+			// the client is gone
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// nothing left to do with this connection
+			}
+		}
+	}
+
+	/***
+	 * Stops accepting connections and closes the open ones.
+	 */
+	public void close() throws IOException
+	{
+		serverSocket.close();
+		// handlers blocked in a read ignore interrupts, but not a closed socket
+		for (Socket socket : sockets) {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// the connection is closed anyway
+			}
+		}
+		connections.shutdownNow();
+		pool.shutdown();
+	}
+}
@@ -3,6 +3,8 @@ package utils;
 import gnu.trove.iterator.TLongIntIterator;
 import gnu.trove.map.hash.TLongIntHashMap;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
@@ -14,6 +16,13 @@ public class Alphabet implements Serializable
 	TLongIntHashMap map;
     int numEntries;
     boolean growthStopped = false;
+    
+    // a frozen alphabet replaces the map by flat arrays: the entries sorted by
+    // the top bits of a mixed hash of their key, and the start of each bucket
+    transient long[] keys;
+    transient int[] values;
+    transient int[] buckets;
+    transient int shift;
 
     public Alphabet (int capacity)
     {
@@ -29,6 +38,14 @@ public class Alphabet implements Serializable
     public Alphabet(Alphabet a)
     {
     	numEntries = a.numEntries;
+    	if (a.keys != null) {
+    		growthStopped = true;
+    		keys = a.keys;
+    		values = a.values;
+    		buckets = a.buckets;
+    		shift = a.shift;
+    		return;
+    	}
     	map = new TLongIntHashMap(numEntries);    	
     	for (TLongIntIterator iter = a.map.iterator(); iter.hasNext();) {
     		iter.advance();
@@ -36,10 +53,121 @@ public class Alphabet implements Serializable
     	}
     }
 
+    /** Read an alphabet written by write(), frozen if it was closed. */
+    public Alphabet(DataInputStream in) throws IOException
+    {
+    	numEntries = in.readInt();
+    	growthStopped = in.readBoolean();
+    	int n = in.readInt();
+    	long[] k = new long[n];
+    	int[] v = new int[n];
+    	for (int i = 0; i < n; ++i) {
+    		k[i] = in.readLong();
+    		v[i] = in.readInt();
+    	}
+    	if (growthStopped)
+    		freeze(k, v);
+    	else
+    		map = toMap(k, v);
+    }
+
+    /** Write the entries to a model file section. */
+    public void write(DataOutputStream out) throws IOException
+    {
+    	out.writeInt(numEntries);
+    	out.writeBoolean(growthStopped);
+    	if (keys != null) {
+    		out.writeInt(keys.length);
+    		for (int i = 0; i < keys.length; ++i) {
+    			out.writeLong(keys[i]);
+    			out.writeInt(values[i]);
+    		}
+    		return;
+    	}
+    	out.writeInt(map.size());
+    	for (TLongIntIterator iter = map.iterator(); iter.hasNext();) {
+    		iter.advance();
+    		out.writeLong(iter.key());
+    		out.writeInt(iter.value());
+    	}
+    }
+    
+    /**
+     * Stops the growth and replaces the hash map by flat arrays, about 16
+     * bytes per entry instead of 26, where a lookup scans a bucket of two
+     * entries on average.
+     */
+    public void freeze()
+    {
+    	if (keys != null) return;
+    	growthStopped = true;
+    	long[] k = new long[map.size()];
+    	int[] v = new int[map.size()];
+    	int i = 0;
+    	for (TLongIntIterator iter = map.iterator(); iter.hasNext(); ++i) {
+    		iter.advance();
+    		k[i] = iter.key();
+    		v[i] = iter.value();
+    	}
+    	freeze(k, v);
+    	map = null;
+    }
+    
+    private void freeze(long[] k, int[] v)
+    {
+    	int n = k.length;
+    	int bits = 32 - Integer.numberOfLeadingZeros(Math.max(1, n >> 1));
+    	shift = 64 - bits;
+    	buckets = new int[(1 << bits) + 1];
+    	for (int i = 0; i < n; ++i)
+    		++buckets[bucket(k[i]) + 1];
+    	for (int b = 1; b < buckets.length; ++b)
+    		buckets[b] += buckets[b-1];
+    	
+    	int[] next = buckets.clone();
+    	keys = new long[n];
+    	values = new int[n];
+    	for (int i = 0; i < n; ++i) {
+    		int p = next[bucket(k[i])]++;
+    		keys[p] = k[i];
+    		values[p] = v[i];
+    	}
+    }
+    
+    private static TLongIntHashMap toMap(long[] k, int[] v)
+    {
+    	TLongIntHashMap map = new TLongIntHashMap(k.length);
+    	for (int i = 0; i < k.length; ++i)
+    		map.put(k[i], v[i]);
+    	return map;
+    }
+    
+    private int bucket(long key)
+    {
+    	// MurmurHash3 finalizer, since feature codes are bit-packed
+    	key ^= key >>> 33;
+    	key *= 0xff51afd7ed558ccdL;
+    	key ^= key >>> 33;
+    	key *= 0xc4ceb9fe1a85ec53L;
+    	key ^= key >>> 33;
+    	return (int) (key >>> shift);
+    }
+    
+    /** Return 0 if entry isn't present. */
+    private int get(long entry)
+    {
+    	if (keys == null)
+    		return map.get(entry);
+    	int b = bucket(entry);
+    	for (int i = buckets[b], end = buckets[b+1]; i < end; ++i)
+    		if (keys[i] == entry) return values[i];
+    	return 0;
+    }
+
     /** Return -1 if entry isn't present. */
     public int lookupIndex (long entry, int value)
     {
-		int ret = map.get(entry);
+		int ret = get(entry);
 		if (ret <= 0 && !growthStopped) {
 			numEntries++;
 			ret = value + 1;
@@ -51,7 +179,7 @@ public class Alphabet implements Serializable
     /** Return -1 if entry isn't present. */
     public int lookupIndex (long entry, boolean addIfNotPresent)
     {
-		int ret = map.get(entry);
+		int ret = get(entry);
 		if (ret <= 0 && !growthStopped && addIfNotPresent) {
 			numEntries++;
 			ret = numEntries;
@@ -67,7 +195,7 @@ public class Alphabet implements Serializable
 	
     public boolean contains (long entry)
     {
-    	return map.contains (entry);
+    	return get(entry) > 0;
     }
 
     public int size ()
@@ -82,6 +210,11 @@ public class Alphabet implements Serializable
 
     public void allowGrowth ()
     {
+    	if (keys != null) {
+    		map = toMap(keys, values);
+    		keys = null;
+    		values = buckets = null;
+    	}
     	growthStopped = false;
     }
 
@@ -91,19 +224,23 @@ public class Alphabet implements Serializable
     }
     
     public long[] toArray () {
-    	return map.keys();
+    	return keys != null ? keys.clone() : map.keys();
     }
 
     // Serialization 
 		
     private static final long serialVersionUID = 1;
-    private static final int CURRENT_SERIAL_VERSION = 0;
+    private static final int CURRENT_SERIAL_VERSION = 1;
 
     private void writeObject (ObjectOutputStream out) throws IOException {
 		out.writeInt (CURRENT_SERIAL_VERSION);
 		out.writeInt (numEntries);
-		out.writeObject(map);
+		out.writeObject(keys != null ? null : map);
 		out.writeBoolean (growthStopped);
+		if (keys != null) {
+			out.writeObject(keys);
+			out.writeObject(values);
+		}
 	}
 	
     private void readObject (ObjectInputStream in) throws IOException, ClassNotFoundException {
@@ -111,6 +248,9 @@ public class Alphabet implements Serializable
 		numEntries = in.readInt();
 		map = (TLongIntHashMap)in.readObject();
 		growthStopped = in.readBoolean();
+		// version 1 writes the arrays of frozen alphabets instead of the map
+		if (version >= 1 && map == null)
+			freeze((long[]) in.readObject(), (int[]) in.readObject());
     }
 }
 	
\ No newline at end of file
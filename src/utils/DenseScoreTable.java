@@ -0,0 +1,66 @@
+package utils;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/***
+ * Score table backed by a flat array holding every possible key. Missing
+ * keys are claimed with a CAS on their slot.
+ */
+public class DenseScoreTable extends ScoreTable {
+	
+	// tables up to this size, or up to 4 times the size asked for, are kept
+	// by reset() instead of being replaced by a smaller one
+	static final int MIN_KEPT_SIZE = 1 << 16;
+	
+	final AtomicLongArray values;
+	
+	public DenseScoreTable(int size)
+	{
+		values = new AtomicLongArray(size);
+	}
+	
+	@Override
+	protected long claim(long key)
+	{
+		int i = (int) key;
+		long bits = values.get(i);
+		if (bits == EMPTY) {
+			if (values.compareAndSet(i, EMPTY, CLAIMED))
+				return EMPTY;
+			bits = values.get(i);
+		}
+		return bits;
+	}
+	
+	@Override
+	public void put(long key, double value)
+	{
+		long old = values.getAndSet((int) key, encode(value));
+		if (old != EMPTY && old != CLAIMED)
+			duplicates.increment();
+	}
+	
+	@Override
+	public void release(long key)
+	{
+		values.compareAndSet((int) key, CLAIMED, EMPTY);
+	}
+	
+	@Override
+	public boolean reset(long size)
+	{
+		long capacity = values.length();
+		if (capacity < size || capacity > 4 * Math.max(size, MIN_KEPT_SIZE))
+			return false;
+		// the next sentence is handed to its threads after the reset
+		for (int i = 0; i < size; ++i)
+			values.lazySet(i, EMPTY);
+		return super.reset(size);
+	}
+	
+	@Override
+	public long size()
+	{
+		return values.length();
+	}
+}
@@ -50,6 +50,33 @@ public class Dictionary implements Serializable
     	}
     }
 
+    /** Read a dictionary written by write(). */
+    public Dictionary(DataInputStream in) throws IOException
+    {
+    	numEntries = in.readInt();
+    	growthStopped = in.readBoolean();
+    	int n = in.readInt();
+    	TObjectIntHashMap<String> entries = new TObjectIntHashMap<String>(n);
+    	for (int i = 0; i < n; ++i) {
+    		String key = in.readUTF();
+    		entries.put(key, in.readInt());
+    	}
+    	map = entries;
+    }
+
+    /** Write the entries, whose keys must be strings, to a model file section. */
+    public void write(DataOutputStream out) throws IOException
+    {
+    	out.writeInt(numEntries);
+    	out.writeBoolean(growthStopped);
+    	out.writeInt(map.size());
+    	for (TObjectIntIterator<?> iter = map.iterator(); iter.hasNext();) {
+    		iter.advance();
+    		out.writeUTF((String) iter.key());
+    		out.writeInt(iter.value());
+    	}
+    }
+
     /** Return -1 (in old trove version) or 0 (in trove current verion) if entry isn't present. */
     public int lookupIndex (Object entry, boolean addIfNotPresent)
     {
@@ -3,10 +3,18 @@ package utils;
 import gnu.trove.iterator.TIntIntIterator;
 import gnu.trove.map.TIntIntMap;
 import gnu.trove.map.hash.TIntIntHashMap;
+import gnu.trove.map.hash.TObjectIntHashMap;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
 
 public class DictionarySet implements Serializable {
 	
@@ -38,6 +46,13 @@ public class DictionarySet implements Serializable {
 	boolean isCounting;
 	TIntIntMap[] counters;
 	
+	// ids of the items looked up with a prefix, keyed on the prefix and then
+	// on the item alone. Filled by the lookups while a dictionary grows, which
+	// is done by one thread, and rebuilt from the whole dictionary when it
+	// stops growing; after that it is only read, so closed dictionaries can
+	// be shared by threads without a lock.
+	transient List<HashMap<String, TObjectIntHashMap<String>>> prefixed;
+	
 	
 	public DictionarySet() 
 	{	
@@ -53,6 +68,33 @@ public class DictionarySet implements Serializable {
             if (i == DictionaryTypes.WORD.ordinal())
                 initDict(DictionaryTypes.WORD, dicts[i]);
 		}
+		indexPrefixes();
+	}
+    
+	/**
+	 * Reads a dictionary set written by write().
+	 */
+	public DictionarySet(DataInputStream in) throws IOException
+	{
+		isCounting = false;
+		tot = in.readInt();
+		dicts = new Dictionary[tot];
+		for (int i = 0; i < tot; ++i)
+			dicts[i] = new Dictionary(in);
+		indexPrefixes();
+	}
+	
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException
+	{
+		in.defaultReadObject();
+		indexPrefixes();
+	}
+	
+	public void write(DataOutputStream out) throws IOException
+	{
+		out.writeInt(tot);
+		for (int i = 0; i < tot; ++i)
+			dicts[i].write(out);
 	}
     
     private void initDict(DictionaryTypes tag, Dictionary dict)
@@ -83,6 +125,65 @@ public class DictionarySet implements Serializable {
 		return id <= 0 ? 1 : id;
 	}
 	
+	/**
+	 * Same as lookupIndex(tag, prefix + item), without building the key for
+	 * items already seen with this prefix.
+	 */
+	public int lookupIndex(DictionaryTypes tag, String prefix, String item)
+	{
+		int t = tag.ordinal();
+		TObjectIntHashMap<String> ids = prefixed.get(t).get(prefix);
+		int id = ids == null ? 0 : ids.get(item);
+		if (id <= 0 && !dicts[t].growthStopped()) {
+			id = dicts[t].lookupIndex(prefix + item);
+			if (id > 0) {
+				if (ids == null) {
+					ids = new TObjectIntHashMap<String>();
+					prefixed.get(t).put(prefix, ids);
+				}
+				ids.put(item, id);
+			}
+		}
+		
+		if (isCounting && id > 0) {
+			counters[t].putIfAbsent(id, 0);
+			counters[t].increment(id);
+		}
+		
+		return id <= 0 ? 1 : id;
+	}
+	
+	private void indexPrefixes()
+	{
+		prefixed = new ArrayList<HashMap<String, TObjectIntHashMap<String>>>(tot);
+		for (int i = 0; i < tot; ++i) {
+			prefixed.add(new HashMap<String, TObjectIntHashMap<String>>());
+			if (dicts[i].growthStopped()) indexPrefixes(i);
+		}
+	}
+	
+	/**
+	 * Splits every key "prefix=item" of a closed dictionary at its first '=',
+	 * so that the lookups of lookupIndex(tag, prefix, item) never miss.
+	 */
+	private void indexPrefixes(int t)
+	{
+		HashMap<String, TObjectIntHashMap<String>> maps = new HashMap<String, TObjectIntHashMap<String>>();
+		for (Object obj : dicts[t].toArray()) {
+			String key = (String) obj;
+			int p = key.indexOf('=');
+			if (p < 0) continue;
+			String prefix = key.substring(0, p + 1);
+			TObjectIntHashMap<String> ids = maps.get(prefix);
+			if (ids == null) {
+				ids = new TObjectIntHashMap<String>();
+				maps.put(prefix, ids);
+			}
+			ids.put(key.substring(p + 1), dicts[t].lookupIndex(obj));
+		}
+		prefixed.set(t, maps);
+	}
+	
 	public int size(DictionaryTypes tag)
 	{
 		return dicts[tag.ordinal()].size();
@@ -91,6 +192,7 @@ public class DictionarySet implements Serializable {
 	public void stopGrowth(DictionaryTypes tag)
 	{
 		dicts[tag.ordinal()].stopGrowth();
+		indexPrefixes(tag.ordinal());
 	}
 	
 	public Dictionary get(DictionaryTypes tag)
@@ -153,6 +255,7 @@ public class DictionarySet implements Serializable {
 		System.out.println("Filtered " + tag + " (" + dicts[t].size() + "-->"
 				+ filtered.size() + ")");
 		dicts[t] = filtered;
+		prefixed.set(t, new HashMap<String, TObjectIntHashMap<String>>());
 	}
 
 }
@@ -3,6 +3,8 @@ package utils;
 
 import gnu.trove.map.hash.TLongObjectHashMap;
 
+import java.nio.FloatBuffer;
+import java.util.Arrays;
 import java.util.HashMap;
 
 public class FeatureVector {
@@ -101,21 +103,35 @@ public class FeatureVector {
 		return Math.sqrt(sum);
 	}
 	
-	private static double[] l2Vec;
-	public double Squaredl2NormUnsafe() {
-
-		if (l2Vec == null || l2Vec.length < nRows) {
-            l2Vec = new double[nRows];
-        }
+	/***
+	 * Squared l2 norm after merging entries with the same index. Sorts a
+	 * copy of the indices, so it is thread-safe and needs no scratch array.
+	 */
+	public double Squaredl2Norm() {
+		
+		long[] keys = sortedEntries();
 		
 		double sum = 0;
-		for (int i = 0; i < size; ++i) l2Vec[x[i]] += va[i];
-		for (int i = 0; i < size; ++i) {
-			sum += l2Vec[x[i]] * l2Vec[x[i]];
-			l2Vec[x[i]] = 0;
+		for (int i = 0; i < size; ) {
+			int id = (int) (keys[i] >>> 32);
+			double v = 0;
+			for (; i < size && (int) (keys[i] >>> 32) == id; ++i)
+				v += va[(int) keys[i]];
+			sum += v * v;
 		}
 		return sum;
-		
+	}
+	
+	/***
+	 * Entries ordered by feature index, each packed as (index << 32 | position)
+	 * so that a primitive sort can be used.
+	 */
+	private long[] sortedEntries() {
+		long[] keys = new long[size];
+		for (int i = 0; i < size; ++i)
+			keys[i] = ((long) x[i] << 32) | i;
+		Arrays.sort(keys);
+		return keys;
 	}
 	
     public double min() {
@@ -201,27 +217,56 @@ public class FeatureVector {
 		return dotProduct(this, _y, offset);
 	}
 	
-	private static double[] dpVec;			 //non-sparse vector repr for vector dot product
+	public double dotProduct(float[] _y) {
+		return dotProduct(this, _y);
+	}
+	
+	public double dotProduct(FloatBuffer _y) {
+		return dotProduct(this, _y);
+	}
+	
+	public double dotProduct(QuantizedVector _y) {
+		return dotProduct(this, _y);
+	}
+	
+	/***
+	 * Sparse-sparse dot product by merging the sorted entries of both vectors.
+	 */
 	public static double dotProduct(FeatureVector _x, FeatureVector _y) {
 		
-		assert(_x.nRows == _y.nRows);		
+		assert(_x.nRows == _y.nRows);
 		
-		if (dpVec == null || dpVec.length < _y.nRows) dpVec = new double[_y.nRows];
+		long[] kx = _x.sortedEntries();
+		long[] ky = _y.sortedEntries();
 		
-		for (int i = 0; i < _y.size; ++i)
-			dpVec[_y.x[i]] += _y.va[i];
+		double sum = 0;
+		int i = 0, j = 0;
+		while (i < _x.size && j < _y.size) {
+			int a = (int) (kx[i] >>> 32);
+			int b = (int) (ky[j] >>> 32);
+			if (a < b) ++i;
+			else if (a > b) ++j;
+			else {
+				double vx = 0, vy = 0;
+				for (; i < _x.size && (int) (kx[i] >>> 32) == a; ++i)
+					vx += _x.va[(int) kx[i]];
+				for (; j < _y.size && (int) (ky[j] >>> 32) == a; ++j)
+					vy += _y.va[(int) ky[j]];
+				sum += vx * vy;
+			}
+		}
+		return sum;
+	}
+	
+	public static double dotProduct(FeatureVector _x, double[] _y) {
 		
 		double sum = 0;
 		for (int i = 0; i < _x.size; ++i)
-			sum += _x.va[i] * dpVec[_x.x[i]];
-
-		for (int i = 0; i < _y.size; ++i)
-			dpVec[_y.x[i]] = 0;
-		
+			sum += _x.va[i] * _y[_x.x[i]];
 		return sum;
 	}
 	
-	public static double dotProduct(FeatureVector _x, double[] _y) {
+	public static double dotProduct(FeatureVector _x, float[] _y) {
 		
 		double sum = 0;
 		for (int i = 0; i < _x.size; ++i)
@@ -229,6 +274,26 @@ public class FeatureVector {
 		return sum;
 	}
 	
+	public static double dotProduct(FeatureVector _x, FloatBuffer _y) {
+		
+		double sum = 0;
+		for (int i = 0; i < _x.size; ++i)
+			sum += _x.va[i] * _y.get(_x.x[i]);
+		return sum;
+	}
+	
+	public static double dotProduct(FeatureVector _x, QuantizedVector _y) {
+		
+		byte[] values = _y.values;
+		float[] scales = _y.scales;
+		double sum = 0;
+		for (int i = 0; i < _x.size; ++i) {
+			int x = _x.x[i];
+			sum += _x.va[i] * values[x] * scales[x >> QuantizedVector.BLOCK_BITS];
+		}
+		return sum;
+	}
+	
 	public static double dotProduct(FeatureVector _x, double[] _y, int offset) {
 		
 		double sum = 0;
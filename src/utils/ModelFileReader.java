@@ -0,0 +1,338 @@
+package utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/***
+ * Reader of the binary model format written by ModelFileWriter. Only the
+ * section table is read when the file is opened; sections are read on demand,
+ * so a caller can load part of a model, and array chunks are inflated in
+ * parallel.
+ */
+public class ModelFileReader {
+
+	static class Entry {
+		long offset;
+		int compressedLength, rawLength, crc;
+	}
+
+	RandomAccessFile raf;
+	FileChannel channel;
+	int version;
+	HashMap<String, Entry> entries = new HashMap<String, Entry>();
+
+	public ModelFileReader(String file) throws IOException
+	{
+		raf = new RandomAccessFile(file, "r");
+		channel = raf.getChannel();
+		DataInputStream in = new DataInputStream(new FileInputStream(raf.getFD()));
+		if (in.readInt() != ModelFileWriter.MAGIC) {
+			close();
+			throw new IOException(file + " is not a model file");
+		}
+		version = in.readInt();
+		if (version > ModelFileWriter.VERSION) {
+			close();
+			throw new IOException(String.format(
+					"%s has format version %d, this parser reads up to %d",
+					file, version, ModelFileWriter.VERSION));
+		}
+		for (int i = 0, n = in.readInt(); i < n; ++i) {
+			String name = in.readUTF();
+			Entry entry = new Entry();
+			entry.offset = in.readLong();
+			entry.compressedLength = in.readInt();
+			entry.rawLength = in.readInt();
+			entry.crc = in.readInt();
+			entries.put(name, entry);
+		}
+	}
+
+	public static boolean isModelFile(String file) throws IOException
+	{
+		if (new File(file).length() < 4) return false;
+		DataInputStream in = new DataInputStream(new FileInputStream(file));
+		try {
+			return in.readInt() == ModelFileWriter.MAGIC;
+		} finally {
+			in.close();
+		}
+	}
+
+	public int getVersion()
+	{
+		return version;
+	}
+
+	public boolean hasSection(String name)
+	{
+		return entries.containsKey(name);
+	}
+
+	public DataInputStream section(String name) throws IOException
+	{
+		return new DataInputStream(new ByteArrayInputStream(readSection(name)));
+	}
+
+	/***
+	 * Reads, inflates and checks one section. Safe to call from several
+	 * threads, since the channel is read with absolute positions.
+	 */
+	byte[] readSection(String name) throws IOException
+	{
+		Entry entry = entries.get(name);
+		if (entry == null)
+			throw new IOException("Missing model section " + name);
+
+		ByteBuffer compressed = ByteBuffer.allocate(entry.compressedLength);
+		for (long pos = entry.offset; compressed.hasRemaining(); ) {
+			int len = channel.read(compressed, pos);
+			if (len < 0) throw new IOException("Truncated model section " + name);
+			pos += len;
+		}
+
+		byte[] raw = new byte[entry.rawLength];
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(compressed.array());
+			int len = 0;
+			while (len < raw.length && !inflater.finished()) {
+				int k = inflater.inflate(raw, len, raw.length - len);
+				if (k == 0 && inflater.needsInput()) break;
+				len += k;
+			}
+			if (len != raw.length)
+				throw new IOException("Truncated model section " + name);
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupted model section " + name, e);
+		} finally {
+			inflater.end();
+		}
+
+		CRC32 crc = new CRC32();
+		crc.update(raw);
+		if ((int) crc.getValue() != entry.crc)
+			throw new IOException("Checksum mismatch in model section " + name);
+		return raw;
+	}
+
+	/***
+	 * Reads an array of doubles or floats written by ModelFileWriter.writeArray
+	 * or writeSparseArray as doubles, whatever its stored precision. The
+	 * entries missing from sparse arrays are zeros.
+	 */
+	public double[] readDoubles(String name, int numThreads) throws IOException
+	{
+		final int[] header = readArrayHeader(name);
+		final int type = header[3];
+		if (type == ModelFileWriter.INT8)
+			throw new IOException("Model section " + name + " is a quantized array");
+		final double[] a = new double[header[1]];
+		readChunks(name, header, numThreads, new ChunkReader() {
+			@Override
+			void read(ByteBuffer buf, int from)
+			{
+				if (header[0] == ModelFileWriter.SPARSE)
+					for (int x : readIndices(buf, from))
+						a[x] = type == ModelFileWriter.DOUBLES ? buf.getDouble() : buf.getFloat();
+				else if (type == ModelFileWriter.DOUBLES)
+					buf.asDoubleBuffer().get(a, from, buf.remaining() / 8);
+				else
+					for (int x = from; buf.hasRemaining(); ++x) a[x] = buf.getFloat();
+			}
+		});
+		return a;
+	}
+
+	public float[] readFloats(String name, int numThreads) throws IOException
+	{
+		final int[] header = readArrayHeader(name);
+		final int type = header[3];
+		if (type == ModelFileWriter.INT8)
+			throw new IOException("Model section " + name + " is a quantized array");
+		final float[] a = new float[header[1]];
+		readChunks(name, header, numThreads, new ChunkReader() {
+			@Override
+			void read(ByteBuffer buf, int from)
+			{
+				if (header[0] == ModelFileWriter.SPARSE)
+					for (int x : readIndices(buf, from))
+						a[x] = type == ModelFileWriter.FLOATS ? buf.getFloat() : (float) buf.getDouble();
+				else if (type == ModelFileWriter.FLOATS)
+					buf.asFloatBuffer().get(a, from, buf.remaining() / 4);
+				else
+					for (int x = from; buf.hasRemaining(); ++x) a[x] = (float) buf.getDouble();
+			}
+		});
+		return a;
+	}
+
+	public QuantizedVector readQuantized(String name, int numThreads) throws IOException
+	{
+		final int[] header = readArrayHeader(name);
+		if (header[3] != ModelFileWriter.INT8)
+			throw new IOException("Model section " + name + " is not a quantized array");
+		final QuantizedVector a = new QuantizedVector(header[1]);
+		final int chunkSize = header[2];
+		readChunks(name, header, numThreads, new ChunkReader() {
+			@Override
+			void read(ByteBuffer buf, int from)
+			{
+				int b = from >> QuantizedVector.BLOCK_BITS;
+				int n = Math.min(a.length - from, chunkSize);
+				int nb = (n + QuantizedVector.BLOCK - 1) >> QuantizedVector.BLOCK_BITS;
+				for (int i = 0; i < nb; ++i)
+					a.scales[b + i] = buf.getFloat();
+				if (header[0] == ModelFileWriter.SPARSE)
+					for (int x : readIndices(buf, from))
+						a.values[x] = buf.get();
+				else
+					buf.get(a.values, from, n);
+			}
+		});
+		return a;
+	}
+
+	/***
+	 * Returns the type of the values of an array, dense or sparse, one of
+	 * ModelFileWriter.DOUBLES, FLOATS and INT8.
+	 */
+	public int arrayType(String name) throws IOException
+	{
+		return readArrayHeader(name)[3];
+	}
+
+	/***
+	 * Returns the type of an array, its length, its chunk size and the type
+	 * of its values.
+	 */
+	private int[] readArrayHeader(String name) throws IOException
+	{
+		DataInputStream in = section(name);
+		int type = in.readByte();
+		int length = in.readInt();
+		int chunkSize = in.readInt();
+		int valueType = type == ModelFileWriter.SPARSE ? in.readByte() : type;
+		if (valueType != ModelFileWriter.DOUBLES && valueType != ModelFileWriter.FLOATS
+				&& valueType != ModelFileWriter.INT8)
+			throw new IOException("Model section " + name + " is not an array");
+		return new int[] { type, length, chunkSize, valueType };
+	}
+
+	/***
+	 * Reads the indices of the entries of a sparse chunk starting at from,
+	 * leaving buf at their values.
+	 */
+	private static int[] readIndices(ByteBuffer buf, int from)
+	{
+		int[] indices = new int[buf.getInt()];
+		for (int i = 0, x = from; i < indices.length; ++i) {
+			int gap = 0;
+			for (int shift = 0; ; shift += 7) {
+				byte b = buf.get();
+				gap |= (b & 0x7F) << shift;
+				if (b >= 0) break;
+			}
+			x += gap;
+			indices[i] = x;
+		}
+		return indices;
+	}
+
+	static abstract class ChunkReader {
+		abstract void read(ByteBuffer buf, int from);
+	}
+
+	private void readChunks(final String name, int[] header, int numThreads,
+			final ChunkReader reader) throws IOException
+	{
+		final int chunkSize = header[2];
+		int numChunks = (header[1] + chunkSize - 1) / chunkSize;
+		ExecutorService executorService = Executors.newFixedThreadPool(
+				Math.max(1, Math.min(numThreads, numChunks)));
+		List<Future<Object>> tasks = new ArrayList<Future<Object>>();
+		for (int k = 0; k < numChunks; ++k) {
+			final int id = k;
+			tasks.add(executorService.submit(new Callable<Object>() {
+				@Override
+				public Object call() throws IOException
+				{
+					byte[] raw = readSection(ModelFileWriter.chunkName(name, id));
+					reader.read(ByteBuffer.wrap(raw).order(ByteOrder.LITTLE_ENDIAN), id * chunkSize);
+					return null;
+				}
+			}));
+		}
+		try {
+			for (Future<Object> task : tasks)
+				task.get();
+		} catch (InterruptedException e) {
+			throw new RuntimeException("Model loading interrupted", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new RuntimeException(e.getCause());
+		} finally {
+			executorService.shutdown();
+		}
+	}
+
+	public void close() throws IOException
+	{
+		raf.close();
+	}
+
+	/************************************************************************
+	 * Decoding of nullable arrays written by ModelFileWriter
+	 ************************************************************************/
+
+	public static double[] readDoubles(DataInputStream in) throws IOException
+	{
+		int n = in.readInt();
+		if (n < 0) return null;
+		double[] a = new double[n];
+		for (int i = 0; i < n; ++i) a[i] = in.readDouble();
+		return a;
+	}
+
+	public static float[] readFloats(DataInputStream in) throws IOException
+	{
+		int n = in.readInt();
+		if (n < 0) return null;
+		float[] a = new float[n];
+		for (int i = 0; i < n; ++i) a[i] = in.readFloat();
+		return a;
+	}
+
+	public static String[] readStrings(DataInputStream in) throws IOException
+	{
+		int n = in.readInt();
+		if (n < 0) return null;
+		String[] a = new String[n];
+		for (int i = 0; i < n; ++i) a[i] = readString(in);
+		return a;
+	}
+
+	public static String readString(DataInputStream in) throws IOException
+	{
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+}
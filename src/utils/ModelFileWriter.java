@@ -0,0 +1,428 @@
+package utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/***
+ * Writer of the binary model format. A model file is a table of named
+ * sections followed by their contents; every section is deflated on its own
+ * and checked with a CRC-32, so sections can be read independently. Large
+ * arrays are split into sections of CHUNK_SIZE entries, and all sections are
+ * compressed in parallel when the file is written.
+ *
+ * Layout: magic, version, number of sections, then for each section its
+ * name, offset, compressed length, raw length and CRC-32 of the raw bytes,
+ * then the compressed sections.
+ *
+ * Arrays are either dense, with every entry, or sparse, with only the
+ * entries kept by a threshold: each chunk of a sparse array covers
+ * CHUNK_SIZE indices and holds the number of entries kept, the gaps
+ * between their sorted indices as varints, then their values.
+ */
+public class ModelFileWriter {
+
+	public static final int MAGIC = 0x52424746;		// "RBGF"
+	public static final int VERSION = 1;
+	public static final int CHUNK_SIZE = 1 << 20;	// array entries per section
+
+	// types of arrays, and of the values of sparse arrays
+	public static final byte DOUBLES = 1, FLOATS = 2, INT8 = 3, SPARSE = 4;
+
+	List<String> names = new ArrayList<String>();
+	List<Callable<byte[]>> contents = new ArrayList<Callable<byte[]>>();
+
+	/***
+	 * Adds a section and returns the stream its content is written to.
+	 */
+	public DataOutputStream section(String name)
+	{
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		addSection(name, new Callable<byte[]>() {
+			@Override
+			public byte[] call()
+			{
+				return bytes.toByteArray();
+			}
+		});
+		return new DataOutputStream(bytes);
+	}
+
+	/***
+	 * Adds an array as a header section followed by chunk sections. The
+	 * array is read when the file is written.
+	 */
+	public void writeArray(String name, final double[] a)
+	{
+		addArrayHeader(name, DOUBLES, a.length);
+		for (int k = 0; k * CHUNK_SIZE < a.length; ++k) {
+			final int from = k * CHUNK_SIZE, to = Math.min(a.length, from + CHUNK_SIZE);
+			addSection(chunkName(name, k), new Callable<byte[]>() {
+				@Override
+				public byte[] call()
+				{
+					ByteBuffer buf = ByteBuffer.allocate(8 * (to - from)).order(ByteOrder.LITTLE_ENDIAN);
+					for (int x = from; x < to; ++x)
+						buf.putDouble(a[x]);
+					return buf.array();
+				}
+			});
+		}
+	}
+
+	public void writeArray(String name, final float[] a)
+	{
+		addArrayHeader(name, FLOATS, a.length);
+		for (int k = 0; k * CHUNK_SIZE < a.length; ++k) {
+			final int from = k * CHUNK_SIZE, to = Math.min(a.length, from + CHUNK_SIZE);
+			addSection(chunkName(name, k), new Callable<byte[]>() {
+				@Override
+				public byte[] call()
+				{
+					ByteBuffer buf = ByteBuffer.allocate(4 * (to - from)).order(ByteOrder.LITTLE_ENDIAN);
+					for (int x = from; x < to; ++x)
+						buf.putFloat(a[x]);
+					return buf.array();
+				}
+			});
+		}
+	}
+
+	/***
+	 * Adds a quantized vector. Each chunk holds the scales of its blocks
+	 * followed by the values.
+	 */
+	public void writeArray(String name, final QuantizedVector a)
+	{
+		Utils.Assert(CHUNK_SIZE % QuantizedVector.BLOCK == 0);
+		addArrayHeader(name, INT8, a.length);
+		for (int k = 0; k * CHUNK_SIZE < a.length; ++k) {
+			final int from = k * CHUNK_SIZE, to = Math.min(a.length, from + CHUNK_SIZE);
+			addSection(chunkName(name, k), new Callable<byte[]>() {
+				@Override
+				public byte[] call()
+				{
+					int b0 = from >> QuantizedVector.BLOCK_BITS;
+					int b1 = (to + QuantizedVector.BLOCK - 1) >> QuantizedVector.BLOCK_BITS;
+					ByteBuffer buf = ByteBuffer.allocate(4 * (b1 - b0) + (to - from))
+							.order(ByteOrder.LITTLE_ENDIAN);
+					for (int b = b0; b < b1; ++b)
+						buf.putFloat(a.scales[b]);
+					buf.put(a.values, from, to - from);
+					return buf.array();
+				}
+			});
+		}
+	}
+
+	/***
+	 * Adds an array as a sparse array, with only its values of more than
+	 * threshold in magnitude. The array is read when the file is written.
+	 */
+	public void writeSparseArray(String name, final double[] a, double threshold)
+	{
+		addSparseArray(name, DOUBLES, a.length, threshold, new Values() {
+			@Override
+			double get(int i)
+			{
+				return a[i];
+			}
+
+			@Override
+			void put(ByteBuffer buf, int i)
+			{
+				buf.putDouble(a[i]);
+			}
+		});
+	}
+
+	public void writeSparseArray(String name, final float[] a, double threshold)
+	{
+		addSparseArray(name, FLOATS, a.length, threshold, new Values() {
+			@Override
+			double get(int i)
+			{
+				return a[i];
+			}
+
+			@Override
+			void put(ByteBuffer buf, int i)
+			{
+				buf.putFloat(a[i]);
+			}
+		});
+	}
+
+	/***
+	 * Adds a quantized vector as a sparse array. Each chunk starts with the
+	 * scales of its blocks, as dense chunks do.
+	 */
+	public void writeSparseArray(String name, final QuantizedVector a, double threshold)
+	{
+		Utils.Assert(CHUNK_SIZE % QuantizedVector.BLOCK == 0);
+		addSparseArray(name, INT8, a.length, threshold, new Values() {
+			@Override
+			int headerSize(int from, int to)
+			{
+				return 4 * ((to - from + QuantizedVector.BLOCK - 1) >> QuantizedVector.BLOCK_BITS);
+			}
+
+			@Override
+			void putHeader(ByteBuffer buf, int from, int to)
+			{
+				int b0 = from >> QuantizedVector.BLOCK_BITS;
+				int b1 = (to + QuantizedVector.BLOCK - 1) >> QuantizedVector.BLOCK_BITS;
+				for (int b = b0; b < b1; ++b)
+					buf.putFloat(a.scales[b]);
+			}
+
+			@Override
+			double get(int i)
+			{
+				return a.get(i);
+			}
+
+			@Override
+			void put(ByteBuffer buf, int i)
+			{
+				buf.put(a.values[i]);
+			}
+		});
+	}
+
+	// entries of an array written as a sparse array
+	static abstract class Values {
+		int headerSize(int from, int to) { return 0; }
+		void putHeader(ByteBuffer buf, int from, int to) { }
+		abstract double get(int i);
+		abstract void put(ByteBuffer buf, int i);
+	}
+
+	private void addSparseArray(String name, byte valueType, int length,
+			final double threshold, final Values a)
+	{
+		DataOutputStream out = addArrayHeader(name, SPARSE, length);
+		try {
+			out.writeByte(valueType);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		final int width = valueType == DOUBLES ? 8 : valueType == FLOATS ? 4 : 1;
+		for (int k = 0; k * CHUNK_SIZE < length; ++k) {
+			final int from = k * CHUNK_SIZE, to = Math.min(length, from + CHUNK_SIZE);
+			addSection(chunkName(name, k), new Callable<byte[]>() {
+				@Override
+				public byte[] call()
+				{
+					int count = 0;
+					for (int x = from; x < to; ++x)
+						if (Math.abs(a.get(x)) > threshold) ++count;
+					ByteBuffer buf = ByteBuffer.allocate(a.headerSize(from, to) + 4 + (5 + width) * count)
+							.order(ByteOrder.LITTLE_ENDIAN);
+					a.putHeader(buf, from, to);
+					buf.putInt(count);
+					for (int x = from, prev = from; x < to; ++x)
+						if (Math.abs(a.get(x)) > threshold) {
+							putVarint(buf, x - prev);
+							prev = x;
+						}
+					for (int x = from; x < to; ++x)
+						if (Math.abs(a.get(x)) > threshold) a.put(buf, x);
+					return Arrays.copyOf(buf.array(), buf.position());
+				}
+			});
+		}
+	}
+
+	private static void putVarint(ByteBuffer buf, int v)
+	{
+		while ((v & ~0x7F) != 0) {
+			buf.put((byte) ((v & 0x7F) | 0x80));
+			v >>>= 7;
+		}
+		buf.put((byte) v);
+	}
+
+	private DataOutputStream addArrayHeader(String name, byte type, int length)
+	{
+		DataOutputStream out = section(name);
+		try {
+			out.writeByte(type);
+			out.writeInt(length);
+			out.writeInt(CHUNK_SIZE);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		return out;
+	}
+
+	static String chunkName(String name, int k)
+	{
+		return name + "#" + k;
+	}
+
+	private void addSection(String name, Callable<byte[]> content)
+	{
+		Utils.Assert(!names.contains(name));
+		names.add(name);
+		contents.add(content);
+	}
+
+	/***
+	 * Compresses the sections with numThreads threads and writes the file.
+	 * The file is replaced only once it is fully written.
+	 */
+	public void write(String file, int numThreads) throws IOException
+	{
+		int n = names.size();
+		ExecutorService executorService = Executors.newFixedThreadPool(numThreads);
+		List<Future<byte[]>> compressed = new ArrayList<Future<byte[]>>();
+		final int[] rawLengths = new int[n];
+		final long[] crcs = new long[n];
+		for (int i = 0; i < n; ++i) {
+			final int id = i;
+			compressed.add(executorService.submit(new Callable<byte[]>() {
+				@Override
+				public byte[] call() throws Exception
+				{
+					byte[] raw = contents.get(id).call();
+					rawLengths[id] = raw.length;
+					CRC32 crc = new CRC32();
+					crc.update(raw);
+					crcs[id] = crc.getValue();
+					return deflate(raw);
+				}
+			}));
+		}
+
+		byte[][] data = new byte[n][];
+		try {
+			for (int i = 0; i < n; ++i)
+				data[i] = compressed.get(i).get();
+		} catch (InterruptedException e) {
+			throw new RuntimeException("Compression interrupted", e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		} finally {
+			executorService.shutdown();
+		}
+
+		// the table has a fixed size, so it is measured before the offsets are known
+		long offset = table(data, rawLengths, crcs, 0).length;
+		byte[] table = table(data, rawLengths, crcs, offset);
+
+		File tmp = createTempFile(file);
+		try {
+			RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+			try {
+				raf.write(table);
+				for (int i = 0; i < n; ++i)
+					raf.write(data[i]);
+			} finally {
+				raf.close();
+			}
+			replace(tmp, file);
+		} finally {
+			tmp.delete();
+		}
+	}
+
+	/***
+	 * Creates a temporary file next to file, to be written and then moved
+	 * over file with replace(), so that a failed write never leaves a
+	 * truncated model behind.
+	 */
+	public static File createTempFile(String file) throws IOException
+	{
+		File target = new File(file).getAbsoluteFile();
+		return File.createTempFile(target.getName(), ".tmp", target.getParentFile());
+	}
+
+	public static void replace(File tmp, String file) throws IOException
+	{
+		Files.move(tmp.toPath(), new File(file).toPath(),
+				StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private byte[] table(byte[][] data, int[] rawLengths, long[] crcs, long offset)
+			throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(names.size());
+		for (int i = 0; i < names.size(); ++i) {
+			out.writeUTF(names.get(i));
+			out.writeLong(offset);
+			out.writeInt(data[i].length);
+			out.writeInt(rawLengths[i]);
+			out.writeInt((int) crcs[i]);
+			offset += data[i].length;
+		}
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	private static byte[] deflate(byte[] raw)
+	{
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		deflater.setInput(raw);
+		deflater.finish();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(raw.length / 4 + 64);
+		byte[] buf = new byte[1 << 16];
+		while (!deflater.finished()) {
+			int len = deflater.deflate(buf);
+			bytes.write(buf, 0, len);
+		}
+		deflater.end();
+		return bytes.toByteArray();
+	}
+
+	/************************************************************************
+	 * Encoding of nullable arrays and collections inside sections
+	 ************************************************************************/
+
+	public static void writeDoubles(DataOutputStream out, double[] a) throws IOException
+	{
+		out.writeInt(a == null ? -1 : a.length);
+		if (a != null)
+			for (double v : a) out.writeDouble(v);
+	}
+
+	public static void writeFloats(DataOutputStream out, float[] a) throws IOException
+	{
+		out.writeInt(a == null ? -1 : a.length);
+		if (a != null)
+			for (float v : a) out.writeFloat(v);
+	}
+
+	public static void writeStrings(DataOutputStream out, String[] a) throws IOException
+	{
+		out.writeInt(a == null ? -1 : a.length);
+		if (a != null)
+			for (String s : a) writeString(out, s);
+	}
+
+	public static void writeString(DataOutputStream out, String s) throws IOException
+	{
+		out.writeBoolean(s != null);
+		if (s != null) out.writeUTF(s);
+	}
+}
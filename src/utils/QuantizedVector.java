@@ -0,0 +1,100 @@
+package utils;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+
+/***
+ * A read-only vector of weights stored as signed bytes with one scale per
+ * block of BLOCK entries: entry i is values[i] * scales[i / BLOCK]. Each
+ * block is scaled by its largest magnitude, so a few large weights only
+ * cost precision in their own block. The scales are kept in their own
+ * array, apart from the values.
+ */
+public class QuantizedVector implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	public static final int BLOCK_BITS = 6;
+	public static final int BLOCK = 1 << BLOCK_BITS;
+
+	public final int length;
+	public final byte[] values;
+	public final float[] scales;
+
+	public QuantizedVector(int length)
+	{
+		this.length = length;
+		values = new byte[length];
+		scales = new float[(length + BLOCK - 1) >> BLOCK_BITS];
+	}
+
+	public QuantizedVector(final double[] a)
+	{
+		this(a.length);
+		quantize(new Source() {
+			@Override
+			double get(int i)
+			{
+				return a[i];
+			}
+		});
+	}
+
+	public QuantizedVector(final float[] a)
+	{
+		this(a.length);
+		quantize(new Source() {
+			@Override
+			double get(int i)
+			{
+				return a[i];
+			}
+		});
+	}
+
+	// weights to quantize, of either precision
+	static abstract class Source {
+		abstract double get(int i);
+	}
+
+	private void quantize(Source a)
+	{
+		for (int b = 0; b < scales.length; ++b) {
+			int from = b << BLOCK_BITS, to = Math.min(length, from + BLOCK);
+			double max = 0;
+			for (int i = from; i < to; ++i)
+				max = Math.max(max, Math.abs(a.get(i)));
+			if (max == 0) continue;
+			scales[b] = (float) (max / 127);
+			double inv = 127 / max;
+			for (int i = from; i < to; ++i)
+				values[i] = (byte) Math.round(a.get(i) * inv);
+		}
+	}
+
+	public double get(int i)
+	{
+		return values[i] * scales[i >> BLOCK_BITS];
+	}
+
+	/***
+	 * Reads a vector written by write().
+	 */
+	public QuantizedVector(DataInputStream in) throws IOException
+	{
+		this(in.readInt());
+		for (int b = 0; b < scales.length; ++b)
+			scales[b] = in.readFloat();
+		in.readFully(values);
+	}
+
+	public void write(DataOutputStream out) throws IOException
+	{
+		out.writeInt(length);
+		for (float s : scales)
+			out.writeFloat(s);
+		out.write(values);
+	}
+}
@@ -0,0 +1,119 @@
+package utils;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/***
+ * Compute-once cache of factor scores indexed by a non-negative long key.
+ * Tables are shared by all hill-climbing threads of a sentence. The first
+ * thread asking for a missing key claims it and computes the score, while
+ * others asking for the same key wait for that score instead of
+ * extracting the same features again.
+ */
+public abstract class ScoreTable {
+	
+	public static final double NULL = Double.NEGATIVE_INFINITY;
+	
+	// scores are stored as complemented raw bits so that a zeroed slot is
+	// empty; both markers decode to NaN and never clash with a real score
+	protected static final long EMPTY = 0L;
+	protected static final long CLAIMED = 1L;
+	
+	static final LongAdder hits = new LongAdder();
+	static final LongAdder misses = new LongAdder();
+	static final LongAdder waits = new LongAdder();
+	static final LongAdder duplicates = new LongAdder();
+	
+	volatile boolean abandoned;
+	
+	protected static long encode(double value)
+	{
+		return ~Double.doubleToRawLongBits(value);
+	}
+	
+	protected static double decode(long bits)
+	{
+		return Double.longBitsToDouble(~bits);
+	}
+	
+	/***
+	 * Returns the stored (encoded) score of key, CLAIMED if another thread
+	 * is computing it, or EMPTY if the caller has to compute it.
+	 */
+	protected abstract long claim(long key);
+	
+	/***
+	 * Returns the score of key, or NULL if the caller has to compute it and
+	 * store it with put(), then call release() whether it succeeded or not.
+	 * Blocks while another thread computes the score, unless the table was
+	 * abandoned.
+	 */
+	public double getOrClaim(long key)
+	{
+		boolean waited = false;
+		for (;;) {
+			long bits = claim(key);
+			if (bits == EMPTY) {
+				misses.increment();
+				return NULL;
+			} else if (bits == CLAIMED) {
+				if (abandoned) {
+					// the claiming thread may never put the score
+					misses.increment();
+					return NULL;
+				}
+				if (!waited) {
+					waits.increment();
+					waited = true;
+				}
+				Thread.yield();
+			} else {
+				if (!waited) hits.increment();
+				return decode(bits);
+			}
+		}
+	}
+	
+	public abstract void put(long key, double value);
+	
+	/***
+	 * Gives up the claim of the caller on key if its score was not put, so
+	 * that the next thread asking for key computes it.
+	 */
+	public abstract void release(long key);
+	
+	/***
+	 * Makes threads waiting for a claimed score compute it themselves, for
+	 * sentences whose climbing threads have stopped or failed.
+	 */
+	public void abandon()
+	{
+		abandoned = true;
+	}
+	
+	/***
+	 * Empties the table for another sentence whose keys are below size.
+	 * Returns false if the table should not be kept for it, in which case
+	 * a new table is created instead.
+	 */
+	public boolean reset(long size)
+	{
+		abandoned = false;
+		return true;
+	}
+	
+	public abstract long size();
+	
+	public static void resetStats()
+	{
+		hits.reset();
+		misses.reset();
+		waits.reset();
+		duplicates.reset();
+	}
+	
+	public static void printStats()
+	{
+		System.out.printf("  Score cache: hits=%d\tmisses=%d\twaits=%d\tduplicates=%d%n",
+				hits.sum(), misses.sum(), waits.sum(), duplicates.sum());
+	}
+}
@@ -0,0 +1,171 @@
+package utils;
+
+import java.util.Arrays;
+
+/***
+ * Memory-bounded score table using open addressing on primitive long keys.
+ * Keys are spread over independently locked segments so that hill-climbing
+ * threads can share the table. Once a segment holds its share of the
+ * capacity, new keys are neither claimed nor stored and the caller simply
+ * recomputes their scores.
+ */
+public class SparseScoreTable extends ScoreTable {
+	
+	static final int NUM_SEGMENTS = 16;
+	static final int MIN_SEGMENT_CAPACITY = 16;
+	
+	final Segment[] segments;
+	
+	public SparseScoreTable(int capacity)
+	{
+		int segCapacity = Math.max(MIN_SEGMENT_CAPACITY, capacity / NUM_SEGMENTS);
+		segments = new Segment[NUM_SEGMENTS];
+		for (int i = 0; i < NUM_SEGMENTS; ++i)
+			segments[i] = new Segment(segCapacity);
+	}
+	
+	private static int hash(long key)
+	{
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+	
+	@Override
+	protected long claim(long key)
+	{
+		int h = hash(key);
+		return segments[h & (NUM_SEGMENTS - 1)].claim(key, h >>> 4);
+	}
+	
+	@Override
+	public void put(long key, double value)
+	{
+		int h = hash(key);
+		segments[h & (NUM_SEGMENTS - 1)].put(key, value, h >>> 4);
+	}
+	
+	@Override
+	public void release(long key)
+	{
+		int h = hash(key);
+		segments[h & (NUM_SEGMENTS - 1)].release(key, h >>> 4);
+	}
+	
+	@Override
+	public boolean reset(long size)
+	{
+		for (Segment segment : segments)
+			segment.clear();
+		return super.reset(size);
+	}
+	
+	@Override
+	public long size()
+	{
+		long size = 0;
+		for (Segment segment : segments)
+			size += segment.size();
+		return size;
+	}
+	
+	static class Segment {
+		
+		static final long NO_KEY = -1L;
+		
+		final int maxSize;
+		long[] keys;
+		long[] values;
+		int size;
+		
+		Segment(int maxSize)
+		{
+			this.maxSize = maxSize;
+			allocate(MIN_SEGMENT_CAPACITY);
+		}
+		
+		private void allocate(int capacity)
+		{
+			keys = new long[capacity];
+			values = new long[capacity];
+			Arrays.fill(keys, NO_KEY);
+		}
+		
+		synchronized void clear()
+		{
+			Arrays.fill(keys, NO_KEY);
+			size = 0;
+		}
+		
+		synchronized long claim(long key, int h)
+		{
+			int p = find(key, h);
+			if (keys[p] == key) {
+				if (values[p] != EMPTY) return values[p];
+				values[p] = CLAIMED;	// released by a failed claimer
+				return EMPTY;
+			}
+			insert(p, key, CLAIMED, h);
+			return EMPTY;
+		}
+		
+		synchronized void release(long key, int h)
+		{
+			int p = find(key, h);
+			if (keys[p] == key && values[p] == CLAIMED)
+				values[p] = EMPTY;
+		}
+		
+		synchronized void put(long key, double value, int h)
+		{
+			int p = find(key, h);
+			if (keys[p] == key) {
+				if (values[p] != CLAIMED)
+					duplicates.increment();
+				values[p] = encode(value);
+			} else
+				insert(p, key, encode(value), h);
+		}
+		
+		private int find(long key, int h)
+		{
+			int mask = keys.length - 1;
+			int p = h & mask;
+			while (keys[p] != NO_KEY && keys[p] != key)
+				p = (p + 1) & mask;
+			return p;
+		}
+		
+		private void insert(int p, long key, long bits, int h)
+		{
+			if (size >= maxSize) return;
+			
+			if ((size + 1) * 2 > keys.length) {
+				rehash(keys.length * 2);
+				p = find(key, h);
+			}
+			keys[p] = key;
+			values[p] = bits;
+			++size;
+		}
+		
+		private void rehash(int capacity)
+		{
+			long[] oldKeys = keys;
+			long[] oldValues = values;
+			allocate(capacity);
+			int mask = capacity - 1;
+			for (int i = 0; i < oldKeys.length; ++i)
+				if (oldKeys[i] != NO_KEY) {
+					int p = hash(oldKeys[i]) >>> 4 & mask;
+					while (keys[p] != NO_KEY) p = (p + 1) & mask;
+					keys[p] = oldKeys[i];
+					values[p] = oldValues[i];
+				}
+		}
+		
+		synchronized int size()
+		{
+			return size;
+		}
+	}
+}
@@ -49,6 +49,30 @@ public final class Utils {
 		return vec;
 	}
 	
+	public static double[][] clone(double[][] mat) 
+	{
+		double[][] copy = new double[mat.length][];
+		for (int i = 0; i < mat.length; ++i)
+			copy[i] = mat[i].clone();
+		return copy;
+	}
+	
+	public static float[] toFloat(double[] vec) 
+	{
+		float[] copy = new float[vec.length];
+		for (int i = 0; i < vec.length; ++i)
+			copy[i] = (float) vec[i];
+		return copy;
+	}
+	
+	public static float[][] toFloat(double[][] mat) 
+	{
+		float[][] copy = new float[mat.length][];
+		for (int i = 0; i < mat.length; ++i)
+			copy[i] = toFloat(mat[i]);
+		return copy;
+	}
+	
 	public static double squaredSum(double[] vec) 
 	{
 		double sum = 0;